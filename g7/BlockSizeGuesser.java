@@ -3,15 +3,12 @@ package mapthatset.g7;
 
 public class BlockSizeGuesser {
 	
+	/* Largest block of the n variables whose values
+	 * are all different with some confidence when the
+	 * image has m values, see BlockSizeTable
+	 */
 	public static int guessBlockSize(int n, int m, double confidence){
-		int k=1;
-		double p = 1;
-		//System.out.println("Confidence="+confidence);
-		for(k=1; k<=m && p >= confidence; k++){
-			p *= (((double)(m-k+1))/m);
-			//System.out.println("k="+k+" p="+p);
-		}
-		return k<2 ? (m > 2? 2 : k) : k-2;
+		return BlockSizeTable.defaults().lookup(n, m, confidence);
 	}
 	
 	public static void main(String[] args){
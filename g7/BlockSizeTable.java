@@ -0,0 +1,372 @@
+package mapthatset.g7;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+/* Block sizes by number of variables, image size
+ * and confidence, the largest block of variables
+ * whose values are all different with at least that
+ * probability
+ * The birthday table (values drawn independently) is
+ * the default and has no cells, every lookup computes
+ * the product exactly in time of the size found
+ * A table calibrated by simulating mappers of some
+ * family keeps sizes on a grid of half octaves of
+ * variables and image sizes for a fixed list of
+ * confidences, a lookup takes the stricter of the
+ * cells around it and falls back to the product
+ * outside the grid
+ * Tables can be written to and read from a file
+ * Set -Dmapthatset.blocksizes=<file> to use a table
+ * calibrated before instead of the birthday product
+ */
+public class BlockSizeTable {
+
+	/* System property with a calibrated table */
+	public static final String property = "mapthatset.blocksizes";
+
+	/* How calibration draws the mappings */
+	public static enum Family {
+
+		/* Every value drawn uniformly, the image
+		 * may come out smaller than asked
+		 */
+		UNIFORM,
+
+		/* Every value of the image taken once and
+		 * the rest drawn uniformly from it
+		 */
+		SURJECTIVE,
+
+		/* Every value of the image taken once and
+		 * the rest drawn with weights 1/rank
+		 */
+		SKEWED
+	}
+
+	/* Half octaves of the grid, up to 2^14 variables */
+	private static final int grid = 29;
+
+	/* Confidences of the table */
+	private static final double[] confidences = {0.5, 0.75, 0.9, 0.95, 0.975, 0.99};
+
+	/* Marks the start of a table file */
+	private static final int file_magic = 0x47374253;
+
+	/* Version of the file layout */
+	private static final int file_version = 1;
+
+	/* Block size per variables, image size and
+	 * confidence, null for the birthday table
+	 */
+	private final char[] sizes;
+
+	/* Table read from the property or the birthday one */
+	private static BlockSizeTable defaults;
+
+	private BlockSizeTable(char[] sizes)
+	{
+		this.sizes = sizes;
+	}
+
+	/* Cell of the table */
+	private static int cell(int n_i, int m_i, int c_i)
+	{
+		return (n_i * grid + m_i) * confidences.length + c_i;
+	}
+
+	/* Size at a point of the grid */
+	private static int point(int i)
+	{
+		return (int) Math.round(Math.pow(2, i / 2.0));
+	}
+
+	/* Block size of n variables whose image has
+	 * m values for some confidence
+	 */
+	public int lookup(int n, int m, double confidence)
+	{
+		if (m <= 1)
+			return 1;
+		n = Math.max(n, m);
+		if (sizes == null || confidence < confidences[0] || n > point(grid - 1) ||
+		    confidence > confidences[confidences.length - 1])
+			return product(m, confidence);
+		/* Sizes grow with the image and shrink with the
+		 * confidence, so take the grid image at or below
+		 * it, the confidence at or above it and the
+		 * smaller of the variable counts around it
+		 */
+		int c_i = 0;
+		while (confidences[c_i] < confidence)
+			c_i++;
+		int m_i = 0;
+		while (point(m_i + 1) <= m)
+			m_i++;
+		int n_i = 0;
+		while (point(n_i) < n)
+			n_i++;
+		int size = sizes[cell(n_i, m_i, c_i)];
+		if (point(n_i) != n)
+			size = Math.min(size, sizes[cell(n_i - 1, m_i, c_i)]);
+		return Math.max(1, Math.min(size, m));
+	}
+
+	/* Largest block whose values are all different
+	 * with some confidence when drawn independently
+	 * and uniformly from m values
+	 */
+	public static int product(int m, double confidence)
+	{
+		double p = 1;
+		int k = 1;
+		while (k < m && p * (m - k) / m >= confidence) {
+			p *= (m - k) / (double) m;
+			k++;
+		}
+		return k;
+	}
+
+	/* Table used by the guessers */
+	public static synchronized BlockSizeTable defaults()
+	{
+		if (defaults == null) {
+			String file = System.getProperty(property);
+			try {
+				defaults = file == null ? birthday() : read(new File(file));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return defaults;
+	}
+
+	/* Table of the birthday product, for values
+	 * drawn independently and uniformly
+	 */
+	public static BlockSizeTable birthday()
+	{
+		return new BlockSizeTable(null);
+	}
+
+	/* Calibrate a table by drawing some mappings per
+	 * cell and taking the first repeated value of a
+	 * few random orders of their variables, cells run
+	 * in parallel on the pool if any
+	 * Sizes past max variables keep the last row
+	 */
+	public static BlockSizeTable calibrate(final Family family, final int mappings, final int orders,
+	                                       int max_variables, SplittableRandom random, ForkJoinPool pool)
+	{
+		final char[] sizes = new char [grid * grid * confidences.length];
+		int rows = 0;
+		while (rows != grid && point(rows) <= max_variables)
+			rows++;
+		Vector <Callable <Object>> tasks = new Vector <Callable <Object>> ();
+		for (int n_i = 0 ; n_i != rows ; ++n_i)
+			for (int m_i = 0 ; m_i <= n_i ; ++m_i) {
+				final int cell_n = n_i;
+				final int cell_m = m_i;
+				final SplittableRandom generator = random.split();
+				tasks.add(new Callable <Object> () {
+					public Object call()
+					{
+						int[] firsts = simulate(family, point(cell_n), point(cell_m),
+						                        mappings, orders, generator);
+						for (int c_i = 0 ; c_i != confidences.length ; ++c_i)
+							sizes[cell(cell_n, cell_m, c_i)] = (char) quantile(firsts, confidences[c_i]);
+						return null;
+					}
+				});
+			}
+		Combinator.run(tasks, pool);
+		for (int n_i = Math.max(rows, 1) ; n_i != grid ; ++n_i)
+			for (int m_i = 0 ; m_i <= n_i ; ++m_i)
+				for (int c_i = 0 ; c_i != confidences.length ; ++c_i)
+					sizes[cell(n_i, m_i, c_i)] = sizes[cell(n_i - 1, Math.min(m_i, n_i - 1), c_i)];
+		fill(sizes);
+		return new BlockSizeTable(sizes);
+	}
+
+	/* Variables all different before the first value
+	 * repeats, over random orders of random mappings
+	 */
+	private static int[] simulate(Family family, int n, int m, int mappings, int orders,
+	                              SplittableRandom random)
+	{
+		int[] firsts = new int [mappings * orders];
+		int[] mapping = new int [n];
+		int[] seen = new int [m];
+		int stamp = 0;
+		double[] weights = new double [m];
+		for (int j = 0 ; j != m ; ++j)
+			weights[j] = (j == 0 ? 0 : weights[j - 1]) + 1.0 / (j + 1);
+		for (int t = 0 ; t != mappings ; ++t) {
+			/* Draw the mapping */
+			for (int i = 0 ; i != n ; ++i) {
+				if (family != Family.UNIFORM && i < m)
+					mapping[i] = i;
+				else if (family == Family.SKEWED) {
+					double w = random.nextDouble() * weights[m - 1];
+					int lo = 0;
+					int hi = m - 1;
+					while (lo != hi) {
+						int mid = (lo + hi) >> 1;
+						if (weights[mid] < w)
+							lo = mid + 1;
+						else
+							hi = mid;
+					}
+					mapping[i] = lo;
+				} else
+					mapping[i] = random.nextInt(m);
+			}
+			/* Walk random orders until a value repeats */
+			for (int o = 0 ; o != orders ; ++o) {
+				stamp++;
+				int k = 0;
+				for (;;) {
+					int j = k + random.nextInt(n - k);
+					int t_var = mapping[k];
+					mapping[k] = mapping[j];
+					mapping[j] = t_var;
+					if (seen[mapping[k]] == stamp)
+						break;
+					seen[mapping[k]] = stamp;
+					if (++k == n)
+						break;
+				}
+				firsts[t * orders + o] = k;
+			}
+		}
+		return firsts;
+	}
+
+	/* Largest block all different in at least a
+	 * part of the runs, given how many variables
+	 * each run had all different
+	 */
+	private static int quantile(int[] firsts, double confidence)
+	{
+		int[] counts = new int [firsts.length == 0 ? 1 : max(firsts) + 2];
+		for (int i = 0 ; i != firsts.length ; ++i)
+			counts[firsts[i]]++;
+		/* Runs with at least k different, from the top */
+		int at_least = 0;
+		for (int k = counts.length - 1 ; k > 1 ; --k) {
+			at_least += counts[k];
+			if (at_least >= confidence * firsts.length)
+				return k;
+		}
+		return 1;
+	}
+
+	private static int max(int[] a)
+	{
+		int m = a[0];
+		for (int i = 1 ; i != a.length ; ++i)
+			m = Math.max(m, a[i]);
+		return m;
+	}
+
+	/* Image sizes past the variables take the
+	 * diagonal so interpolation near it is sane
+	 */
+	private static void fill(char[] sizes)
+	{
+		for (int n_i = 0 ; n_i != grid ; ++n_i)
+			for (int m_i = n_i + 1 ; m_i != grid ; ++m_i)
+				for (int c_i = 0 ; c_i != confidences.length ; ++c_i)
+					sizes[cell(n_i, m_i, c_i)] = sizes[cell(n_i, n_i, c_i)];
+	}
+
+	/* Write the table to a file, the birthday
+	 * table has no cells to write
+	 */
+	public void write(File file) throws IOException
+	{
+		if (sizes == null)
+			throw new IllegalStateException();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(file_magic);
+			out.writeInt(file_version);
+			out.writeInt(grid);
+			out.writeInt(confidences.length);
+			for (int i = 0 ; i != sizes.length ; ++i)
+				out.writeChar(sizes[i]);
+		} finally {
+			out.close();
+		}
+	}
+
+	/* Read a table written by write() */
+	public static BlockSizeTable read(File file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != file_magic || in.readInt() != file_version ||
+			    in.readInt() != grid || in.readInt() != confidences.length)
+				throw new IOException("Bad block size table " + file);
+			char[] sizes = new char [grid * grid * confidences.length];
+			for (int i = 0 ; i != sizes.length ; ++i)
+				sizes[i] = in.readChar();
+			return new BlockSizeTable(sizes);
+		} finally {
+			in.close();
+		}
+	}
+
+	/* Calibrate a table and write it
+	 * Options: -family UNIFORM|SURJECTIVE|SKEWED,
+	 * -mappings and -orders per cell, -max variables
+	 * and -out <file>, prints it against the birthday
+	 * product for a few sizes
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		Family family = Family.SURJECTIVE;
+		int mappings = 200;
+		int orders = 20;
+		int max_variables = 4096;
+		File out = null;
+		for (int i = 0 ; i + 1 < args.length ; i += 2) {
+			if (args[i].equals("-family"))
+				family = Family.valueOf(args[i + 1]);
+			else if (args[i].equals("-mappings"))
+				mappings = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-orders"))
+				orders = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-max"))
+				max_variables = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-out"))
+				out = new File(args[i + 1]);
+			else
+				throw new IllegalArgumentException(args[i]);
+		}
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		if (pool.getParallelism() <= 1)
+			pool = null;
+		BlockSizeTable table = calibrate(family, mappings, orders, max_variables,
+		                                 RunSeed.generator(BlockSizeTable.class), pool);
+		if (out != null)
+			table.write(out);
+		BlockSizeTable reference = birthday();
+		int[][] points = {{10, 5}, {40, 20}, {40, 38}, {100, 60}, {1000, 300}, {1000, 1000}};
+		for (int[] p : points)
+			for (double confidence : new double [] {0.6, 0.9, 0.975})
+				System.out.println(String.format("n=%-5d m=%-5d confidence=%-6s %5d %5d", p[0], p[1],
+				                   confidence, table.lookup(p[0], p[1], confidence),
+				                   reference.lookup(p[0], p[1], confidence)));
+	}
+}
@@ -1,24 +1,48 @@
 package mapthatset.g7;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.Vector;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /* Combinator class is a tool that stores a
  * number of variables and constraints for
  * them and can be iterated to give all possible
  * solutions that satisfy the constraints given
  */
-class Combinator implements Iterable <int[]> {
+public class Combinator implements Iterable <int[]>, Engine {
 
 	/* Display debug info */
 	private static final boolean debug = false;
 
-	/* Random generator */
-	private static final Random random = new Random();
+	/* Random generator of this engine
+	 * Each iterator splits its own from it
+	 */
+	private SplittableRandom random;
 
 	/* Number of variables */
 	private final int variable_count;
@@ -35,6 +59,29 @@ class Combinator implements Iterable <int[]> {
 	/* Size of active domain per variable */
 	private int[] gen_domain_size;
 
+	/* Position of each value offset in the domain
+	 * array per variable, in the domain if less
+	 * than the size
+	 */
+	private int[][] gen_position;
+
+	/* Clock value of the last change per variable */
+	private int[] gen_version;
+
+	/* Clock ticking on every domain change */
+	private int domain_clock;
+
+	/* Read only views of the domains */
+	private DomainView[] views;
+
+	/* Listeners of domain events */
+	private Vector <Listener> listeners;
+
+	/* Constraint being added, its entailment
+	 * is checked once it is attached to all
+	 */
+	private int adding_constraint;
+
 	/* Is last changes propagated ? */
 	private HashSet <Integer> propagation_variables;
 
@@ -85,9 +132,91 @@ class Combinator implements Iterable <int[]> {
 	/* Constraints for the problem */
 	private Vector <Constraint> constraints;
 
+	/* State to go back to on pop() */
+	private static class Checkpoint {
+
+		/* Top of the trail */
+		int trail_top;
+
+		/* Number of constraints */
+		int constraint_count;
+
+		/* Stamp of domains saved in this checkpoint */
+		int stamp;
+
+		/* Variables waiting for propagation */
+		HashSet <Integer> propagation_variables;
+	}
+
+	/* Open checkpoints, innermost last */
+	private Vector <Checkpoint> checkpoints;
+
+	/* Pairs of variable and old domain size
+	 * saved the first time a domain shrinks
+	 * after a checkpoint
+	 */
+	private int[] trail;
+
+	/* Number of elements in trail */
+	private int trail_top;
+
+	/* Checkpoint stamp of the last save per variable */
+	private int[] trail_stamp;
+
+	/* Stamps given to checkpoints so far */
+	private int stamps;
+
+	/* Number of pop() calls so far */
+	private int generation;
+
+	/* Domain cut found by a background search */
+	private static class PendingCut {
+
+		/* Values seen per variable */
+		final long[][] seen;
+
+		/* Generation when the search started */
+		final int generation;
+
+		PendingCut(long[][] seen, int generation)
+		{
+			this.seen = seen;
+			this.generation = generation;
+		}
+	}
+
+	/* Cuts of background searches not applied yet */
+	private ConcurrentLinkedQueue <PendingCut> pending_cuts;
+
 	/* Constraints for each variable */
 	private IntArray[] attach;
 
+	/* Constraints and attachments restored from a
+	 * snapshot exist only compiled until needed
+	 */
+	private boolean constraints_compiled_only;
+
+	/* Constraints compiled to arrays for the searches
+	 * Rebuilt when constraints change and shared read
+	 * only between parallel search workers
+	 */
+	private int[][] compiled_attach;
+
+	/* Variables of each compiled constraint */
+	private int[][] compiled_variables;
+
+	/* Number of values of each compiled constraint */
+	private int[] compiled_values;
+
+	/* Values of each compiled constraint as bitsets */
+	private long[][] compiled_value_bits;
+
+	/* Stamp per value used when checking solutions */
+	private int[] check_used;
+
+	/* Current stamp of solution checks */
+	private int check_stamp;
+
 	/* Timeout for iterator */
 	private long iterator_timeout_limit;
 
@@ -117,6 +246,138 @@ class Combinator implements Iterable <int[]> {
 		}
 	}
 
+	/* How a search ended */
+	public static enum Status {
+
+		/* Whole search space explored */
+		COMPLETE,
+
+		/* Whole search space explored, no solution */
+		UNSATISFIABLE,
+
+		/* Deadline expired before the end */
+		TIMEOUT,
+
+		/* Deadline cancelled before the end */
+		CANCELLED,
+
+		/* Backtrack limit reached before the end */
+		BACKTRACK_LIMIT,
+
+		/* Visitor asked to stop before the end */
+		STOPPED,
+
+		/* Still searching in the background */
+		RUNNING
+	}
+
+	/* Read only view of the assignment of a search
+	 * Only valid during the visit that gives it
+	 */
+	public static interface Assignment {
+
+		/* Number of variables */
+		int variables();
+
+		/* Value of a one based variable */
+		int value(int var);
+	}
+
+	/* Receives domain events as propagation and refinement
+	 * happen on the thread using the engine
+	 * A new constraint cuts the domains of its variables
+	 * at once, the rest of its propagation waits until the
+	 * domains are read next or propagate() is called
+	 * Variables are one based and constraints are counted
+	 * from zero in the order they were added
+	 * Must not change or query the engine while called
+	 */
+	public static interface Listener {
+
+		/* Domain of a variable lost a value */
+		void shrunk(int var, int size);
+
+		/* Domain of a variable is down to one value */
+		void fixed(int var, int value);
+
+		/* Domain of a variable got values back on pop() */
+		void restored(int var, int size);
+
+		/* All variables of a constraint are fixed
+		 * to exactly its values
+		 */
+		void entailed(int constraint);
+	}
+
+	/* Listener ignoring all events
+	 * Extend it to handle only some of them
+	 */
+	public static class ListenerAdapter implements Listener {
+
+		public void shrunk(int var, int size) {}
+
+		public void fixed(int var, int value) {}
+
+		public void restored(int var, int size) {}
+
+		public void entailed(int constraint) {}
+	}
+
+	/* Callback for every solution of a search */
+	public static interface Visitor {
+
+		/* Visit a solution, return false to stop */
+		boolean visit(Assignment assignment);
+	}
+
+	/* Result of a search and how it ended
+	 * Unless the status is COMPLETE the count
+	 * and the solutions are partial
+	 */
+	public static class Result {
+
+		/* Count of a call that does not count solutions */
+		public static final long unknown_count = -1;
+
+		/* How the search ended */
+		public final Status status;
+
+		/* Number of solutions, unknown_count if the
+		 * call proves domains without counting them
+		 */
+		public final long count;
+
+		/* Solutions if requested and not too many */
+		public final int[][] solutions;
+
+		/* Number of first constraints all the
+		 * solutions are known to satisfy
+		 */
+		public final int watermark;
+
+		public Result(Status status, long count, int[][] solutions)
+		{
+			this(status, count, solutions, 0);
+		}
+
+		public Result(Status status, long count, int[][] solutions, int watermark)
+		{
+			this.status = status;
+			this.count = count;
+			this.solutions = solutions;
+			this.watermark = watermark;
+		}
+
+		/* Check if the search covered all the space */
+		public boolean complete()
+		{
+			return status == Status.COMPLETE || status == Status.UNSATISFIABLE;
+		}
+	}
+
+	/* Search nodes between deadline checks minus one */
+	private static final int poll_mask = 255;
+
 	/* Constructor with default minimum and maximum value */
 	public Combinator(int vars)
 	{
@@ -143,24 +404,206 @@ class Combinator implements Iterable <int[]> {
 		int value_count = max_value - min_value + 1;
 		gen_domain = new int [variable_count][value_count];
 		gen_domain_size = new int [variable_count];
+		gen_position = new int [variable_count][value_count];
+		gen_version = new int [variable_count];
+		domain_clock = 0;
+		views = new DomainView [variable_count];
 		for (int i = 0 ; i != variable_count ; ++i) {
 			gen_domain_size[i] = value_count;
-			for (int j = 0 ; j != value_count ; ++j)
+			for (int j = 0 ; j != value_count ; ++j) {
 				gen_domain[i][j] = j + min_value;
+				gen_position[i][j] = j;
+			}
+			views[i] = new DomainView(i);
 		}
 		iterator_timeout_limit = Long.MAX_VALUE;
 		iterator_backtrack_limit = Long.MAX_VALUE;
 		iterator_value_limit = Integer.MAX_VALUE;
 		propagation_variables = new HashSet <Integer> ();
+		random = RunSeed.generator(Combinator.class);
+		listeners = new Vector <Listener> ();
+		adding_constraint = -1;
+		checkpoints = new Vector <Checkpoint> ();
+		trail = new int [variable_count * 2];
+		trail_top = 0;
+		trail_stamp = new int [variable_count];
+		stamps = 0;
+		generation = 0;
+		pending_cuts = new ConcurrentLinkedQueue <PendingCut> ();
+	}
+
+	/* Open a checkpoint to go back to with pop()
+	 * Constraints added and domains cut after it
+	 * are hypothetical and undone in time that
+	 * depends only on what changed
+	 * Results, stores, diagrams and enumerations
+	 * made inside a checkpoint are stale after it
+	 */
+	public void push()
+	{
+		Checkpoint checkpoint = new Checkpoint();
+		checkpoint.trail_top = trail_top;
+		checkpoint.constraint_count = constraints.size();
+		checkpoint.stamp = ++stamps;
+		checkpoint.propagation_variables = new HashSet <Integer> (propagation_variables);
+		checkpoints.add(checkpoint);
+	}
+
+	/* Undo everything since the last push() */
+	public void pop()
+	{
+		if (checkpoints.size() == 0)
+			throw new IllegalStateException();
+		Checkpoint checkpoint = checkpoints.remove(checkpoints.size() - 1);
+		/* Restore domain sizes, removed values are past the end */
+		int restored_top = trail_top;
+		while (trail_top != checkpoint.trail_top) {
+			trail_top -= 2;
+			gen_domain_size[trail[trail_top]] = trail[trail_top + 1];
+			gen_version[trail[trail_top]] = ++domain_clock;
+		}
+		/* Drop constraints, they are last in every attach list */
+		materialize();
+		for (int con_pos = constraints.size() ; con_pos-- != checkpoint.constraint_count ; ) {
+			for (int var_i : constraints.get(con_pos).variables)
+				attach[var_i].remove(attach[var_i].size() - 1);
+			constraints.remove(con_pos);
+		}
+		if (compiled_variables != null && compiled_variables.length > checkpoint.constraint_count) {
+			compiled_variables = Arrays.copyOf(compiled_variables, checkpoint.constraint_count);
+			compiled_values = Arrays.copyOf(compiled_values, checkpoint.constraint_count);
+			compiled_value_bits = Arrays.copyOf(compiled_value_bits, checkpoint.constraint_count);
+			compiled_attach = null;
+		}
+		propagation_variables = checkpoint.propagation_variables;
+		generation++;
+		/* Tell listeners once everything is back */
+		for (int i = trail_top ; i != restored_top ; i += 2)
+			if (gen_domain_size[trail[i]] == trail[i + 1])
+				for (int l = 0 ; l != listeners.size() ; ++l)
+					listeners.get(l).restored(trail[i] + 1, trail[i + 1]);
+	}
+
+	/* Add a listener of domain events */
+	public void addListener(Listener listener)
+	{
+		listeners.add(listener);
+	}
+
+	/* Remove a listener of domain events */
+	public void removeListener(Listener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/* Tell listeners a domain lost a value and if it
+	 * got fixed check the constraints it completes
+	 */
+	private void shrunk(int var_i)
+	{
+		int size = gen_domain_size[var_i];
+		for (int l = 0 ; l != listeners.size() ; ++l)
+			listeners.get(l).shrunk(var_i + 1, size);
+		if (size != 1)
+			return;
+		for (int l = 0 ; l != listeners.size() ; ++l)
+			listeners.get(l).fixed(var_i + 1, gen_domain[var_i][0]);
+		for (int con_pos : attach[var_i])
+			if (con_pos != adding_constraint && entailed(con_pos))
+				for (int l = 0 ; l != listeners.size() ; ++l)
+					listeners.get(l).entailed(con_pos);
+	}
+
+	/* Check if all variables of a constraint are
+	 * fixed to exactly its values
+	 */
+	private boolean entailed(int con_pos)
+	{
+		materialize();
+		Constraint con = constraints.get(con_pos);
+		HashSet <Integer> used_values = new HashSet <Integer> ();
+		for (int var_i : con.variables) {
+			if (gen_domain_size[var_i] != 1)
+				return false;
+			used_values.add(gen_domain[var_i][0]);
+		}
+		return used_values.equals(con.values);
+	}
+
+	/* Number of open checkpoints */
+	public int depth()
+	{
+		return checkpoints.size();
+	}
+
+	/* Remove a value from a domain by swapping it past
+	 * the end so a pop() can bring it back by restoring
+	 * the size saved on the trail
+	 */
+	private void remove(int var_i, int val_i)
+	{
+		if (checkpoints.size() != 0) {
+			int stamp = checkpoints.lastElement().stamp;
+			if (trail_stamp[var_i] != stamp) {
+				trail_stamp[var_i] = stamp;
+				if (trail_top == trail.length)
+					trail = Arrays.copyOf(trail, trail_top * 2);
+				trail[trail_top++] = var_i;
+				trail[trail_top++] = gen_domain_size[var_i];
+			}
+		}
+		int last = --gen_domain_size[var_i];
+		int[] domain = gen_domain[var_i];
+		gen_position[var_i][domain[last] - min_value] = val_i;
+		gen_position[var_i][domain[val_i] - min_value] = last;
+		swap(domain, val_i, last);
+		gen_version[var_i] = ++domain_clock;
+		propagation_variables.add(var_i);
+		if (listeners.size() != 0)
+			shrunk(var_i);
+	}
+
+	/* Reseed the engine so the following
+	 * searches replay the same way
+	 */
+	public void seed(long seed)
+	{
+		random = new SplittableRandom(seed);
+	}
+
+	/* Build constraint objects and attachments from the
+	 * compiled arrays of a restored snapshot
+	 */
+	private void materialize()
+	{
+		if (!constraints_compiled_only)
+			return;
+		constraints_compiled_only = false;
+		for (int con_pos = 0 ; con_pos != constraints.size() ; ++con_pos) {
+			int[] vars = new int [compiled_variables[con_pos].length];
+			for (int i = 0 ; i != vars.length ; ++i)
+				vars[i] = compiled_variables[con_pos][i] + 1;
+			int[] vals = new int [compiled_values[con_pos]];
+			long[] bits = compiled_value_bits[con_pos];
+			for (int bit = 0, i = 0 ; i != vals.length ; ++bit)
+				if ((bits[bit >> 6] & (1l << bit)) != 0)
+					vals[i++] = bit + min_value;
+			constraints.set(con_pos, new Constraint(vars, vals));
+		}
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i)
+			for (int i = 0 ; i != compiled_attach[var_i].length ; ++i)
+				attach[var_i].add(compiled_attach[var_i][i]);
 	}
 
 	/* Add a new constraint in the combinator */
 	public void constraint(int[] vars, int[] vals)
 	{
+		materialize();
 		/* Create the new constraint and add it in the list */
 		Constraint new_constraint = new Constraint(vars, vals);
 		int constraint_position = constraints.size();
 		constraints.add(new_constraint);
+		adding_constraint = constraint_position;
 
 		/* Attach the constraint to affected variables */
 		for (int var_i : new_constraint.variables) {
@@ -168,22 +611,34 @@ class Combinator implements Iterable <int[]> {
 
 			/* Cut the domains of variable to match the new constraint */
 			for (int val_i = 0 ; val_i != gen_domain_size[var_i] ; ++val_i)
-				if (!new_constraint.values.contains(gen_domain[var_i][val_i])) {
-					gen_domain[var_i][val_i--] = gen_domain[var_i][--gen_domain_size[var_i]];
-					propagation_variables.add(var_i);
-				}
+				if (!new_constraint.values.contains(gen_domain[var_i][val_i]))
+					remove(var_i, val_i--);
 		}
+		adding_constraint = -1;
+		if (listeners.size() != 0 && entailed(constraint_position))
+			for (int l = 0 ; l != listeners.size() ; ++l)
+				listeners.get(l).entailed(constraint_position);
 	}
 
 	/* Find out cases where there the same number
 	 * of free variables and unused values
 	 * So each one of the free variables can
 	 * only pick from those values
+	 * Runs lazily when the domains are read, call it
+	 * to get the events of new constraints now
 	 */
-	private void propagate()
+	public void propagate()
 	{
+		/* Apply cuts of background searches that are still
+		 * sound, none if a pop() removed constraints since
+		 */
+		PendingCut pending;
+		while ((pending = pending_cuts.poll()) != null)
+			if (pending.generation == generation)
+				cut(pending.seen);
 		/* Check propagation between variables */
 		while (propagation_variables.size() != 0) {
+			materialize();
 			int var = propagation_variables.iterator().next();
 			propagation_variables.remove(var);
 			for (int con_pos : attach[var]) {
@@ -209,10 +664,8 @@ class Combinator implements Iterable <int[]> {
 					continue;
 				for (int var_i : unassigned_variables)
 					for (int val_i = 0 ; val_i != gen_domain_size[var_i] ; ++val_i) {
-						if (!unused_values.contains(gen_domain[var_i][val_i])) {
-							gen_domain[var_i][val_i--] = gen_domain[var_i][--gen_domain_size[var_i]];
-							propagation_variables.add(var_i);
-						}
+						if (!unused_values.contains(gen_domain[var_i][val_i]))
+							remove(var_i, val_i--);
 						if (gen_domain_size[var_i] == 0)
 							throw new RuntimeException();
 					}
@@ -220,6 +673,47 @@ class Combinator implements Iterable <int[]> {
 		}
 	}
 
+	/* Propagate and compile constraints
+	 * Must run before creating searches
+	 */
+	void prepare()
+	{
+		propagate();
+		if (compiled_variables != null && compiled_variables.length == constraints.size() &&
+		    compiled_attach != null)
+			return;
+		int constraint_count = constraints.size();
+		int old_count = compiled_variables == null ? 0 : compiled_variables.length;
+		compiled_variables = Arrays.copyOf(compiled_variables == null ?
+			new int [0][] : compiled_variables, constraint_count);
+		compiled_values = Arrays.copyOf(compiled_values == null ?
+			new int [0] : compiled_values, constraint_count);
+		compiled_value_bits = Arrays.copyOf(compiled_value_bits == null ?
+			new long [0][] : compiled_value_bits, constraint_count);
+		for (int con_pos = old_count ; con_pos < constraint_count ; ++con_pos) {
+			Constraint con = constraints.get(con_pos);
+			compiled_variables[con_pos] = toArray(con.variables);
+			compiled_values[con_pos] = con.values.size();
+			compiled_value_bits[con_pos] = new long [words()];
+			for (int value : con.values)
+				compiled_value_bits[con_pos][(value - min_value) >> 6] |= 1l << (value - min_value);
+		}
+		if (check_used == null)
+			check_used = new int [max_value - min_value + 1];
+		compiled_attach = new int [variable_count][];
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i) {
+			compiled_attach[var_i] = new int [attach[var_i].size()];
+			for (int i = 0 ; i != compiled_attach[var_i].length ; ++i)
+				compiled_attach[var_i][i] = attach[var_i].get(i);
+		}
+	}
+
+	/* Number of variables */
+	public int variables()
+	{
+		return variable_count;
+	}
+
 	/* Size of one variable's domain
 	 * WITHOUT running the search
 	 */
@@ -231,6 +725,89 @@ class Combinator implements Iterable <int[]> {
 		return Arrays.copyOf(gen_domain[var_i], gen_domain_size[var_i]);
 	}
 
+	/* Read only view of the domain of a variable
+	 * Always shows the current domain so it can
+	 * be kept and read without any copy
+	 */
+	public class DomainView {
+
+		/* Zero based variable */
+		private final int var_i;
+
+		private DomainView(int var_i)
+		{
+			this.var_i = var_i;
+		}
+
+		/* Number of values */
+		public int size()
+		{
+			propagate();
+			return gen_domain_size[var_i];
+		}
+
+		/* Value at a position, in no particular order */
+		public int value(int i)
+		{
+			propagate();
+			if (i < 0 || i >= gen_domain_size[var_i])
+				throw new IndexOutOfBoundsException();
+			return gen_domain[var_i][i];
+		}
+
+		/* Check if the domain has a value */
+		public boolean contains(int value)
+		{
+			propagate();
+			if (value < min_value || value > max_value)
+				return false;
+			return gen_position[var_i][value - min_value] < gen_domain_size[var_i];
+		}
+
+		/* Clock value of the last change */
+		public int version()
+		{
+			propagate();
+			return gen_version[var_i];
+		}
+	}
+
+	/* View of the domain of a one based variable */
+	public DomainView view(int var)
+	{
+		if (var <= 0 || var > variable_count)
+			throw new IllegalArgumentException();
+		return views[var - 1];
+	}
+
+	/* Domain sizes of all variables into an array
+	 * indexed by zero based variable
+	 */
+	public int[] sizes(int[] sizes)
+	{
+		propagate();
+		System.arraycopy(gen_domain_size, 0, sizes, 0, variable_count);
+		return sizes;
+	}
+
+	/* Versions of all domains into an array indexed by
+	 * zero based variable, a domain changed after a
+	 * clock value if its version is greater
+	 */
+	public int[] versions(int[] versions)
+	{
+		propagate();
+		System.arraycopy(gen_version, 0, versions, 0, variable_count);
+		return versions;
+	}
+
+	/* Clock value of the last domain change */
+	public int version()
+	{
+		propagate();
+		return domain_clock;
+	}
+
 	/* Returns unique solution else null
 	 * Throws exception if unsolvable
 	 */
@@ -245,33 +822,129 @@ class Combinator implements Iterable <int[]> {
 		return solution;
 	}
 
-	/* Iterator over valid combinations */
+	/* Search for up to two solutions within the deadline
+	 * The solution is unique if the result is COMPLETE
+	 * with count equal to one
+	 */
+	public Result unique(Deadline deadline)
+	{
+		prepare();
+		Search search = new Search(deadline);
+		Vector <int[]> found = new Vector <int[]> ();
+		while (found.size() != 2 && search.hasNext())
+			found.add(search.next());
+		Status status = found.size() == 2 ? Status.COMPLETE : search.status();
+		if (status == Status.COMPLETE && found.size() == 0)
+			status = Status.UNSATISFIABLE;
+		return new Result(status, found.size(), toArray(found), constraints.size());
+	}
+
+	/* One random solution within the deadline
+	 * Values are tried in random order so any
+	 * solution can come out but not uniformly
+	 */
+	public Result sample(SplittableRandom generator, Deadline deadline)
+	{
+		prepare();
+		Search search = new Search(deadline, null, variable_count, generator);
+		if (search.hasNext()) {
+			int[][] one = {search.next()};
+			return new Result(Status.COMPLETE, 1, one, constraints.size());
+		}
+		Status status = search.status() == Status.COMPLETE ? Status.UNSATISFIABLE : search.status();
+		return new Result(status, 0, new int [0][], constraints.size());
+	}
+
+	/* Iterator over valid combinations
+	 * Throws exception when the timeout or
+	 * the backtrack limit is reached
+	 */
 	public Iterator <int[]> iterator()
 	{
-		/* Anonymous class for iterator */
+		prepare();
+		final Search search = new Search(limitDeadline());
 		return new Iterator <int[]> () {
 
-	/* Indicates if we have finished the search for combinations
-	 * Also used as a trick to call a "constructor" function
+			public boolean hasNext()
+			{
+				if (search.hasNext())
+					return true;
+				search.check();
+				return false;
+			}
+
+			public int[] next()
+			{
+				if (!search.hasNext())
+					search.check();
+				return search.next();
+			}
+
+			public void remove() {}
+		};
+	}
+
+	/* Deadline for the timeout limit set */
+	private Deadline limitDeadline()
+	{
+		if (iterator_timeout_limit == Long.MAX_VALUE)
+			return Deadline.never();
+		return Deadline.after(iterator_timeout_limit);
+	}
+
+	/* Backtracking search over valid combinations
+	 * Stops quietly when the deadline expires or the
+	 * backtrack limit is reached and keeps the reason
+	 * Domains must be propagated before creating it
 	 */
-	boolean finished = init();
+	private class Search implements Iterator <int[]>, Assignment {
+
+	/* Indicates if we have finished the search for combinations */
+	boolean finished;
+
+	/* Search over the whole space */
+	Search(Deadline search_deadline)
+	{
+		this(search_deadline, null, variable_count, random.split());
+	}
 
-	/* "Constructor" for the anonymous iterator */
-	private boolean init()
+	/* Search under a decision path of (variable, value)
+	 * pairs with zero based variables and stop at every
+	 * assignment of the first depth_limit variables
+	 * Path variables are always the first to be fixed
+	 */
+	Search(Deadline search_deadline, int[] path, int depth_limit, SplittableRandom gen)
 	{
-		/* Initialize variables and order */
+		/* Own generator and deadline for this search */
+		generator = gen;
+		deadline = search_deadline;
+		status = Status.COMPLETE;
+		this.depth_limit = depth_limit;
+
+		/* Take the compiled constraints */
+		attached = compiled_attach;
+		con_variables = compiled_variables;
+		constraint_count = compiled_variables.length;
+
+		/* Initialize variables and order with path first */
 		variables_fixed = 0;
 		variable = new int [variable_count];
 		order = new int [variable_count];
+		boolean[] in_path = new boolean [variable_count];
+		int order_i = 0;
+		for (int i = 0 ; path != null && i != path.length ; i += 2)
+			if (!in_path[path[i]]) {
+				in_path[path[i]] = true;
+				order[order_i++] = path[i];
+			}
 		for (int i = 0 ; i != variable_count ; ++i) {
 			variable[i] = min_value - 1;
-			order[i] = i;
+			if (!in_path[i])
+				order[order_i++] = i;
 		}
 
 		/* Initialize domains and copy them */
-		propagate();
 		int value_count = max_value - min_value + 1;
-		constraint_count = constraints.size();
 		domain = new int [variable_count][value_count];
 		domain_size = new int [variable_count];
 		domain_offset = new int [variable_count];
@@ -281,6 +954,20 @@ class Combinator implements Iterable <int[]> {
 				domain[i][j] = gen_domain[i][j];
 		}
 
+		/* Restrict path variables to their values */
+		for (int i = 0 ; path != null && i != path.length ; i += 2) {
+			int var_i = path[i];
+			int val_i = 0;
+			while (val_i != domain_size[var_i] && domain[var_i][val_i] != path[i + 1])
+				val_i++;
+			if (val_i == domain_size[var_i])
+				domain_size[var_i] = 0;
+			else {
+				swap(domain[var_i], 0, val_i);
+				domain_size[var_i] = 1;
+			}
+		}
+
 		/* Cut variable stack and counters */
 		cut_values = new int [variable_count];
 		cut_stack = new int [variable_count * value_count];
@@ -290,8 +977,8 @@ class Combinator implements Iterable <int[]> {
 		unused_value = new int [constraint_count];
 		unknown_variable = new int [constraint_count];
 		for (int i = 0 ; i != unknown_variable.length ; ++i) {
-			unused_value[i] = constraints.get(i).values.size();
-			unknown_variable[i] = constraints.get(i).variables.size();
+			unused_value[i] = compiled_values[i];
+			unknown_variable[i] = con_variables[i].length;
 		}
 
 		/* Initialize used values */
@@ -301,16 +988,80 @@ class Combinator implements Iterable <int[]> {
 				value_uses[i][j] = 0;
 
 		/* Set space search limits */
-		timeout_limit = iterator_timeout_limit;
 		backtrack_limit = iterator_backtrack_limit;
 		value_limit = iterator_value_limit;
 
 		/* Set search statistics */
-		used_time = 0;
+		nodes = 0;
 		backtracks = 0;
 
-		/* Haven't found first yet and not finished */		
-		return next_found = false;
+		/* Haven't found first yet and not finished */
+		next_found = false;
+		finished = false;
+	}
+
+	/* How the search ended so far */
+	Status status()
+	{
+		return status;
+	}
+
+	/* Cubes covering the space left unsearched
+	 * when the search was cut short, deepest first
+	 * For each variable fixed a cube per value not
+	 * tried yet and one for the last assignment
+	 * itself if nothing under it was searched
+	 */
+	int[][] frontier()
+	{
+		Vector <int[]> cubes = new Vector <int[]> ();
+		if (status == Status.COMPLETE)
+			return toArray(cubes);
+		if (stopped_fresh)
+			cubes.add(path());
+		for (int level = variables_fixed - 1 ; level >= 0 ; --level) {
+			int var_i = order[level];
+			int end = domain_size[var_i] < value_limit ? domain_size[var_i] : value_limit;
+			for (int val_i = domain_offset[var_i] + 1 ; val_i < end ; ++val_i) {
+				int[] cube = new int [level * 2 + 2];
+				for (int i = 0 ; i != level ; ++i) {
+					cube[i * 2] = order[i];
+					cube[i * 2 + 1] = variable[order[i]];
+				}
+				cube[level * 2] = var_i;
+				cube[level * 2 + 1] = domain[var_i][val_i];
+				cubes.add(cube);
+			}
+		}
+		return toArray(cubes);
+	}
+
+	/* Run to the end keeping all solutions */
+	void collect()
+	{
+		collected = new Vector <int[]> ();
+		while (hasNext())
+			collected.add(next());
+	}
+
+	/* Decision path of the current assignment */
+	int[] path()
+	{
+		int[] path = new int [variables_fixed * 2];
+		for (int i = 0 ; i != variables_fixed ; ++i) {
+			path[i * 2] = order[i];
+			path[i * 2 + 1] = variable[order[i]];
+		}
+		return path;
+	}
+
+	/* Throw exception if the search was cut short */
+	void check()
+	{
+		if (status == Status.TIMEOUT || status == Status.CANCELLED)
+			throw new TimeoutException();
+		if (status == Status.BACKTRACK_LIMIT)
+			throw new BacktrackException();
 	}
 
 	/* The backtracking algorithm
@@ -319,11 +1070,16 @@ class Combinator implements Iterable <int[]> {
 	 */
 	private boolean go()
 	{
-		long tick = System.currentTimeMillis();
 		boolean go_on = (variables_fixed == 0);
 		int var_i, rand, offset;
 		next_variable:
 		do {
+			/* Check the deadline every few nodes */
+			if ((++nodes & poll_mask) == 0 && deadline.expired()) {
+				status = deadline.cancelled() ? Status.CANCELLED : Status.TIMEOUT;
+				stopped_fresh = go_on;
+				return false;
+			}
 			if (!go_on) {
 
 				/* Clear effects of last value of top variable */
@@ -332,10 +1088,8 @@ class Combinator implements Iterable <int[]> {
 				variable[var_i] = min_value - 1;
 
 				/* Clear modifications on constraints */
-				for (int con_pos_i = 0 ; con_pos_i != attach[var_i].size() ; ++con_pos_i) {
-					int con_pos = attach[var_i].get(con_pos_i);
-					if (con_pos >= constraint_count)
-						break;
+				for (int con_pos_i = 0 ; con_pos_i != attached[var_i].length ; ++con_pos_i) {
+					int con_pos = attached[var_i][con_pos_i];
 					if (--value_uses[con_pos][value - min_value] == 0)
 						unused_value[con_pos]++;
 					unknown_variable[con_pos]++;
@@ -350,10 +1104,8 @@ class Combinator implements Iterable <int[]> {
 			} else {
 
 				/* Next solution found */
-				if (variables_fixed == variable_count) {
-					used_time += System.currentTimeMillis() - tick;
+				if (variables_fixed == depth_limit)
 					return true;
-				}
 
 				/* Add new variable in the stack
 				 * Pick the one with the smallest
@@ -394,7 +1146,7 @@ class Combinator implements Iterable <int[]> {
 
 				/* Pick a random value to put from the domain */
 				offset = domain_offset[var_i];
-				rand = random.nextInt(domain_size[var_i] - offset);
+				rand = generator.nextInt(domain_size[var_i] - offset);
 				swap(domain[var_i], domain_offset[var_i], rand + offset);
 
 				/* Limit used values */
@@ -410,10 +1162,8 @@ class Combinator implements Iterable <int[]> {
 					System.out.println("x" + (var_i + 1) + " <- " + value);
 
 				/* Check all constraints */
-				for (int con_pos_i = 0 ; con_pos_i != attach[var_i].size() ; ++con_pos_i) {
-					int con_pos = attach[var_i].get(con_pos_i);
-					if (con_pos >= constraint_count)
-						break;
+				for (int con_pos_i = 0 ; con_pos_i != attached[var_i].length ; ++con_pos_i) {
+					int con_pos = attached[var_i][con_pos_i];
 
 					/* If free variables now less than
 					 * unused values try next value
@@ -423,9 +1173,7 @@ class Combinator implements Iterable <int[]> {
 
 						/* Undo partial changes to constraints */
 						while (con_pos_i-- != 0) {
-							con_pos = attach[var_i].get(con_pos_i);
-							if (con_pos >= constraint_count)
-								break;
+							con_pos = attached[var_i][con_pos_i];
 							if (--value_uses[con_pos][value - min_value] == 0)
 								unused_value[con_pos]++;
 							unknown_variable[con_pos]++;
@@ -452,7 +1200,7 @@ class Combinator implements Iterable <int[]> {
 					 * other variable attached to the constraint
 					 */
 					if (unused_value[con_pos] == unknown_variable[con_pos])
-						for (int aff_var_i : constraints.get(con_pos).variables) {
+						for (int aff_var_i : con_variables[con_pos]) {
 
 							/* Ignore already set variables */
 							if (variable[aff_var_i] != min_value - 1)
@@ -469,11 +1217,11 @@ class Combinator implements Iterable <int[]> {
 							/* If domain size becomes zero you have to undo domain cuts */
 							if (domain_size[aff_var_i] == 0) {
 
-								/* Undo partial changes to constraints */
-								while (con_pos_i-- != 0) {
-									con_pos = attach[aff_var_i].get(con_pos_i);
-									if (con_pos >= constraint_count)
-										break;
+								/* Undo partial changes to constraints
+								 * including the current one
+								 */
+								for (++con_pos_i ; con_pos_i-- != 0 ; ) {
+									con_pos = attached[var_i][con_pos_i];
 									if (--value_uses[con_pos][value - min_value] == 0)
 										unused_value[con_pos]++;
 									unknown_variable[con_pos]++;
@@ -502,16 +1250,10 @@ class Combinator implements Iterable <int[]> {
 			variables_fixed--;
 
 			/* Check backtrack limit */
-			if (backtracks++ == backtrack_limit)
-				throw new BacktrackException();
-
-			/* Check timeout limit every 4096 backtracks */
-			if ((backtracks & 4095) == 0) {
-				long new_tick = System.currentTimeMillis();
-				used_time += new_tick - tick;
-				if (used_time > timeout_limit)
-					throw new TimeoutException();
-				tick = new_tick;
+			if (backtracks++ == backtrack_limit) {
+				status = Status.BACKTRACK_LIMIT;
+				stopped_fresh = false;
+				return false;
 			}
 
 		/* Failed when backtracking required for 1st variable */
@@ -533,16 +1275,34 @@ class Combinator implements Iterable <int[]> {
 	/* Get next iterator */
 	public int[] next()
 	{
-		if (finished)
-			throw new NoSuchElementException();
-		if (!next_found && !go()) {
-			finished = true;
+		if (!advance())
 			throw new NoSuchElementException();
-		}
-		next_found = false;
 		return Arrays.copyOf(variable, variable_count);
 	}
 
+	/* Move to the next solution without copying it
+	 * The variable array holds it until next call
+	 */
+	boolean advance()
+	{
+		if (!hasNext())
+			return false;
+		next_found = false;
+		return true;
+	}
+
+	/* Number of variables of the assignment */
+	public int variables()
+	{
+		return variable_count;
+	}
+
+	/* Value of a one based variable */
+	public int value(int var)
+	{
+		return variable[var - 1];
+	}
+
 	/* Remove iterator function */
 	public void remove() {}
 
@@ -555,6 +1315,15 @@ class Combinator implements Iterable <int[]> {
 	/* Number of constraints used */
 	int constraint_count;
 
+	/* Constraints attached to each variable */
+	int[][] attached;
+
+	/* Variables of each constraint */
+	int[][] con_variables;
+
+	/* Number of variables fixed for a solution */
+	int depth_limit;
+
 	/* Domains per variable */
 	int[][] domain;
 
@@ -588,8 +1357,11 @@ class Combinator implements Iterable <int[]> {
 	/* Indicates if next element found */
 	boolean next_found;
 
-	/* Timeout for iterator */
-	long timeout_limit;
+	/* Deadline of the search */
+	Deadline deadline;
+
+	/* How the search ended so far */
+	Status status;
 
 	/* Backtrack limit for iterator */
 	long backtrack_limit;
@@ -597,23 +1369,28 @@ class Combinator implements Iterable <int[]> {
 	/* Values used per variable limit */
 	int value_limit;
 
-	/* Used time */
-	long used_time;
+	/* Search nodes visited */
+	long nodes;
+
+	/* Stopped right after fixing a variable */
+	boolean stopped_fresh;
+
+	/* Solutions kept by collect() */
+	Vector <int[]> collected;
 
 	/* Backtrack count */
 	long backtracks;
 
-		/* End of anonymous class for iterator */
-		};
-	}
+	/* Random generator of the search */
+	SplittableRandom generator;
 
-	/* Typedef set of integers to allow array creation */
-	private static class IntSet extends HashSet <Integer> {
-		private static final long serialVersionUID = 4l;
+	/* End of search class */
 	}
 
 	/* Set timeout for the iterators
 	 * that are produced by this class
+	 * Counted in wall clock time from the
+	 * moment the search starts
 	 * Zero or negative means infinity
 	 */
 	public void timeoutLimit(long millis)
@@ -646,17 +1423,42 @@ class Combinator implements Iterable <int[]> {
 	 */
 	public long refine()
 	{
-		long[] count = new long [1];
-		try {
-			findall(false, count);
-		} catch (NoSuchElementException e) {
-			return 0l;
-		} catch (TimeoutException e) {
-			return -1l;
-		} catch (BacktrackException e) {
-			return -2l;
+		Result result = refine(limitDeadline());
+		switch (result.status) {
+			case COMPLETE: return result.count;
+			case BACKTRACK_LIMIT: return -2l;
+			case UNSATISFIABLE: return 0l;
+			default: return -1l;
 		}
-		return count[0];
+	}
+
+	/* Find all solutions within the deadline and
+	 * refine domains if the search is complete
+	 * Returns the number of solutions found
+	 */
+	public Result refine(Deadline deadline)
+	{
+		return findall(false, true, deadline, null);
+	}
+
+	/* Parallel refine() on the pool given */
+	public Result refine(Deadline deadline, ForkJoinPool pool)
+	{
+		return findall(false, true, deadline, pool);
+	}
+
+	/* Count solutions within the deadline
+	 * Domains are left untouched
+	 */
+	public Result count(Deadline deadline)
+	{
+		return findall(false, false, deadline, null);
+	}
+
+	/* Parallel count() on the pool given */
+	public Result count(Deadline deadline, ForkJoinPool pool)
+	{
+		return findall(false, false, deadline, pool);
 	}
 
 	/* Find all solutions and return them if possible
@@ -666,60 +1468,498 @@ class Combinator implements Iterable <int[]> {
 	 */
 	public int[][] findall()
 	{
-		long[] count = new long [1];
-		try {
-			return findall(true, count);
-		} catch (TimeoutException e) {
-			return null;
-		} catch (BacktrackException e) {
+		Result result = findall(limitDeadline());
+		if (result.status == Status.UNSATISFIABLE)
+			throw new NoSuchElementException();
+		if (result.status != Status.COMPLETE)
 			return null;
+		return result.solutions;
+	}
+
+	/* Find all solutions within the deadline and
+	 * refine domains if the search is complete
+	 * If cut short the solutions found so far
+	 * are returned with the reason
+	 */
+	public Result findall(Deadline deadline)
+	{
+		return findall(true, true, deadline, null);
+	}
+
+	/* Call the visitor on every solution within the
+	 * deadline with a view of the assignment and no
+	 * copy, stops as soon as the visitor says so
+	 * Domains are left untouched
+	 */
+	public Result visit(Visitor visitor, Deadline deadline)
+	{
+		prepare();
+		Search search = new Search(deadline);
+		long solutions = 0;
+		while (search.advance()) {
+			solutions++;
+			if (!visitor.visit(search))
+				return new Result(Status.STOPPED, solutions, null, constraints.size());
 		}
+		Status status = search.status();
+		if (status == Status.COMPLETE && solutions == 0)
+			status = Status.UNSATISFIABLE;
+		return new Result(status, solutions, null, constraints.size());
+	}
+
+	/* Lazy stream of the solutions, the search runs only
+	 * as far as the stream is consumed so limit() and
+	 * findFirst() stop it early
+	 * Ends quietly when the deadline expires
+	 */
+	public Stream <int[]> stream(Deadline deadline)
+	{
+		prepare();
+		final Search search = new Search(deadline);
+		Spliterator <int[]> solutions = new Spliterators.AbstractSpliterator <int[]> (Long.MAX_VALUE,
+				Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT) {
+
+			public boolean tryAdvance(Consumer <? super int[]> action)
+			{
+				if (!search.advance())
+					return false;
+				action.accept(Arrays.copyOf(search.variable, variable_count));
+				return true;
+			}
+		};
+		return StreamSupport.stream(solutions, false);
+	}
+
+	/* Search running in the background
+	 * Cancelling it stops the search at the next
+	 * deadline check and progress() tells what
+	 * has been found so far
+	 */
+	public class Solving extends CompletableFuture <Result> {
+
+		/* Deadline of the search, cancelled with it */
+		final Deadline deadline;
+
+		/* Solutions found so far if kept */
+		final Vector <int[]> found;
+
+		/* Number of solutions found so far */
+		volatile long count;
+
+		/* Number of first constraints searched */
+		final int watermark;
+
+		Solving(Deadline deadline, boolean return_solutions, int watermark)
+		{
+			this.deadline = deadline;
+			found = return_solutions ? new Vector <int[]> () : null;
+			count = 0;
+			this.watermark = watermark;
+		}
+
+		/* Stop the search and cancel the future */
+		public boolean cancel(boolean may_interrupt)
+		{
+			deadline.cancel();
+			return super.cancel(may_interrupt);
+		}
+
+		/* Partial result while running, the
+		 * final one when completed normally
+		 */
+		public Result progress()
+		{
+			if (isDone() && !isCompletedExceptionally())
+				return join();
+			Status status = isCancelled() ? Status.CANCELLED : Status.RUNNING;
+			int[][] solutions = found == null ? null : toArray(new Vector <int[]> (found));
+			return new Result(status, solutions == null ? count : solutions.length, solutions, watermark);
+		}
+	}
+
+	/* Asynchronous findall() on an executor */
+	public Solving findallAsync(Deadline deadline, Executor executor)
+	{
+		return async(true, true, deadline, executor);
+	}
+
+	/* Asynchronous findall() on the common pool */
+	public Solving findallAsync(Deadline deadline)
+	{
+		return async(true, true, deadline, ForkJoinPool.commonPool());
+	}
+
+	/* Asynchronous refine() on an executor */
+	public Solving refineAsync(Deadline deadline, Executor executor)
+	{
+		return async(false, true, deadline, executor);
+	}
+
+	/* Asynchronous refine() on the common pool */
+	public Solving refineAsync(Deadline deadline)
+	{
+		return async(false, true, deadline, ForkJoinPool.commonPool());
+	}
+
+	/* Asynchronous count() on an executor */
+	public Solving countAsync(Deadline deadline, Executor executor)
+	{
+		return async(false, false, deadline, executor);
+	}
+
+	/* Asynchronous count() on the common pool */
+	public Solving countAsync(Deadline deadline)
+	{
+		return async(false, false, deadline, ForkJoinPool.commonPool());
+	}
+
+	/* Start a search on an executor
+	 * The search works on a copy of the domains taken
+	 * now so constraints can be added while it runs
+	 * Domains are refined on the thread using the engine
+	 * the next time it propagates after the search ends
+	 */
+	private Solving async(final boolean return_solutions, final boolean refine_domains,
+	                      Deadline deadline, Executor executor)
+	{
+		prepare();
+		final Solving solving = new Solving(deadline.slice(Long.MAX_VALUE), return_solutions,
+		                                    constraints.size());
+		final Search search = new Search(solving.deadline);
+		final int search_generation = generation;
+		executor.execute(new Runnable() {
+			public void run()
+			{
+				try {
+					long[][] seen = new long [variable_count][words()];
+					long solutions = 0;
+					while (search.advance()) {
+						if (return_solutions && solutions < (long) Integer.MAX_VALUE)
+							solving.found.add(Arrays.copyOf(search.variable, variable_count));
+						mark(seen, search.variable);
+						solving.count = ++solutions;
+					}
+					Status status = search.status();
+					if (status == Status.COMPLETE && solutions == 0)
+						status = Status.UNSATISFIABLE;
+					if (status == Status.COMPLETE && refine_domains)
+						pending_cuts.add(new PendingCut(seen, search_generation));
+					int[][] all_solutions = null;
+					if (return_solutions && solutions <= (long) Integer.MAX_VALUE)
+						all_solutions = toArray(solving.found);
+					solving.complete(new Result(status, solutions, all_solutions, solving.watermark));
+				} catch (Throwable e) {
+					solving.completeExceptionally(e);
+				}
+			}
+		});
+		return solving;
+	}
+
+	/* Parallel findall() on the pool given
+	 * Solutions come in the same order for the same seed
+	 */
+	public Result findall(Deadline deadline, ForkJoinPool pool)
+	{
+		return findall(true, true, deadline, pool);
 	}
 
 	/* Find all solutions and refine domains
 	 * Returns solutions depending on argument
-	 * Used to implement findall() and refine()
-	 * If problem cannot be solved throw exception
-	 * If timeout occurs of backtrack limit is
-	 * reached also throw exception for each case
+	 * Used to implement findall(), refine() and count()
+	 * Runs in parallel if a pool is given
+	 * Domains are only refined if the search
+	 * covered all the space
 	 */
-	private int[][] findall(boolean return_solutions, long[] count)
+	private Result findall(boolean return_solutions, boolean refine_domains,
+	                       Deadline deadline, ForkJoinPool pool)
 	{
-		propagate();
-		Iterator <int[]> it = iterator();
-		IntSet [] real_domain = new IntSet [variable_count];
-		for (int i = 0 ; i != variable_count ; ++i)
-			real_domain[i] = new IntSet();
-		Vector <int[]> all_solutions = new Vector <int[]> ();
+		prepare();
+		long[][] seen = new long [variable_count][words()];
+		Vector <int[]> all_solutions;
 		long solutions = 0;
-		while (it.hasNext()) {
-			solutions++;
-			int[] solution = it.next();
-			if (return_solutions)
-				all_solutions.add(solution);
-			for (int val_i = 0 ; val_i != variable_count ; ++val_i)
-				real_domain[val_i].add(solution[val_i]);
-		}
-		/* If no solution found throw exception */
-		if (solutions == 0)
-			throw new NoSuchElementException();
+		Status status;
+		if (pool == null) {
+			Result result = solve(new int [0], return_solutions, deadline, random.split(), seen);
+			all_solutions = new Vector <int[]> ();
+			if (result.solutions != null)
+				all_solutions.addAll(Arrays.asList(result.solutions));
+			solutions = result.count;
+			status = result.status;
+		} else {
+			Parallel parallel = new Parallel(deadline, return_solutions);
+			all_solutions = pool.invoke(new Split(parallel, new int [0],
+			                            pool.getParallelism() * split_leaves, random.split()));
+			for (Worker worker : parallel.workers.values()) {
+				solutions += worker.count;
+				for (int var_i = 0 ; var_i != variable_count ; ++var_i)
+					for (int i = 0 ; i != seen[var_i].length ; ++i)
+						seen[var_i][i] |= worker.seen[var_i][i];
+			}
+			status = parallel.status;
+		}
+		return finish(status, solutions, seen, return_solutions ? all_solutions : null, refine_domains);
+	}
+
+	/* Build the result of a search and
+	 * refine domains if it is complete
+	 * and refinement is asked for
+	 */
+	Result finish(Status status, long solutions, long[][] seen,
+	              Vector <int[]> all_solutions, boolean refine_domains)
+	{
+		boolean return_solutions = all_solutions != null;
+		/* No solution in the whole space */
+		if (status == Status.COMPLETE && solutions == 0)
+			return new Result(Status.UNSATISFIABLE, 0, return_solutions ? new int [0][] : null,
+			                  constraints.size());
 		/* Cut domains to contain only values found in solutions */
-		for (int var_i = 0 ; var_i != variable_count ; ++var_i)
-			for (int val_i = 0 ; val_i != gen_domain_size[var_i] ; ++val_i)
-				if (!real_domain[var_i].contains(gen_domain[var_i][val_i])) {
-					gen_domain[var_i][val_i--] = gen_domain[var_i][--gen_domain_size[var_i]];
-					propagation_variables.add(var_i);
-				}
-		count[0] = solutions;
+		if (status == Status.COMPLETE && refine_domains)
+			cut(seen);
 		/* Solutions not required or too many */
 		if (!return_solutions || solutions > (long) Integer.MAX_VALUE)
-			return null;
-		/* Return solutions as an array */
-		int[][] all_solutions_arr = new int [all_solutions.size()][];
-		int i = 0;
-		for (int[] solution : all_solutions)
-			all_solutions_arr[i++] = solution;
-		return all_solutions_arr;
+			return new Result(status, solutions, null, constraints.size());
+		return new Result(status, solutions, toArray(all_solutions), constraints.size());
+	}
+
+	/* Leaves per pool thread for parallel searches */
+	private static final int split_leaves = 16;
+
+	/* State shared by the tasks of a parallel search */
+	private class Parallel {
+
+		/* Deadline of all tasks */
+		final Deadline deadline;
+
+		/* Keep the solutions found */
+		final boolean return_solutions;
+
+		/* Work of each thread running tasks */
+		final ConcurrentHashMap <Thread, Worker> workers;
+
+		/* Reason of the first task cut short */
+		volatile Status status;
+
+		Parallel(Deadline deadline, boolean return_solutions)
+		{
+			this.deadline = deadline;
+			this.return_solutions = return_solutions;
+			workers = new ConcurrentHashMap <Thread, Worker> ();
+			status = Status.COMPLETE;
+		}
+
+		/* Record why a task was cut short, only the
+		 * first reason is kept
+		 */
+		synchronized void cut(Status reason)
+		{
+			if (status == Status.COMPLETE)
+				status = reason;
+		}
+
+		/* Work of the current thread */
+		Worker worker()
+		{
+			Worker worker = workers.get(Thread.currentThread());
+			if (worker == null) {
+				worker = new Worker();
+				workers.put(Thread.currentThread(), worker);
+			}
+			return worker;
+		}
+	}
+
+	/* Solutions counted and values seen by one thread */
+	private class Worker {
+
+		/* Number of solutions */
+		long count = 0;
+
+		/* Values seen per variable */
+		final long[][] seen = new long [variable_count][words()];
+	}
+
+	/* Parallel search under a decision path
+	 * Splits into one stealable task per value of the
+	 * next branching variable sharing its leaves among
+	 * them and searches sequentially when a single leaf
+	 * Returns the solutions in a fixed order
+	 */
+	private class Split extends RecursiveTask <Vector <int[]>> {
+		private static final long serialVersionUID = 5l;
+
+		/* Shared state */
+		private final Parallel parallel;
+
+		/* Decision path of the subtree */
+		private int[] path;
+
+		/* Number of leaves to split into */
+		private final int leaves;
+
+		/* Generator of the task */
+		private final SplittableRandom generator;
+
+		Split(Parallel parallel, int[] path, int leaves, SplittableRandom generator)
+		{
+			this.parallel = parallel;
+			this.path = path;
+			this.leaves = leaves;
+			this.generator = generator;
+		}
+
+		protected Vector <int[]> compute()
+		{
+			Vector <int[]> solutions = new Vector <int[]> ();
+			/* Find the next variable that branches */
+			if (leaves > 1 && path.length != variable_count * 2) {
+				Result children = branch(path, parallel.deadline, generator.split());
+				if (children.status != Status.COMPLETE) {
+					parallel.cut(children.status);
+					return solutions;
+				}
+				/* No assignment under the path */
+				if (children.count == 0)
+					return solutions;
+				/* Split among the values of the variable */
+				if (children.count != 1) {
+					Split[] tasks = new Split [children.solutions.length];
+					int share = leaves / tasks.length;
+					for (int i = 0 ; i != tasks.length ; ++i)
+						tasks[i] = new Split(parallel, children.solutions[i], share, generator.split());
+					invokeAll(tasks);
+					for (int i = 0 ; i != tasks.length ; ++i)
+						solutions.addAll(tasks[i].join());
+					return solutions;
+				}
+				path = children.solutions[0];
+			}
+			/* Search the subtree sequentially */
+			Worker worker = parallel.worker();
+			Result result = solve(path, parallel.return_solutions, parallel.deadline, generator, worker.seen);
+			worker.count += result.count;
+			if (result.solutions != null)
+				solutions.addAll(Arrays.asList(result.solutions));
+			if (result.status != Status.COMPLETE)
+				parallel.cut(result.status);
+			return solutions;
+		}
+	}
+
+	/* Search the subtree of a decision path only
+	 * and mark the values of its solutions as seen
+	 * Constraints must be prepared before
+	 * Status is COMPLETE even with no solution
+	 */
+	Result solve(int[] path, boolean return_solutions, Deadline deadline,
+	             SplittableRandom gen, long[][] seen)
+	{
+		Search search = new Search(deadline, path, variable_count, gen);
+		Vector <int[]> all_solutions = new Vector <int[]> ();
+		long solutions = 0;
+		while (search.advance()) {
+			solutions++;
+			if (return_solutions && solutions <= (long) Integer.MAX_VALUE)
+				all_solutions.add(Arrays.copyOf(search.variable, variable_count));
+			mark(seen, search.variable);
+		}
+		if (!return_solutions || solutions > (long) Integer.MAX_VALUE)
+			return new Result(search.status(), solutions, null);
+		return new Result(search.status(), solutions, toArray(all_solutions));
+	}
+
+	/* Assignments under a decision path down to the
+	 * next variable with more than one value or the
+	 * single full assignment if none branches
+	 * Returns the decision paths as solutions
+	 * Constraints must be prepared before
+	 */
+	private Result branch(int[] path, Deadline deadline, SplittableRandom gen)
+	{
+		Vector <int[]> children = new Vector <int[]> ();
+		while (path.length != variable_count * 2) {
+			Search search = new Search(deadline, path, path.length / 2 + 1, gen.split());
+			children.clear();
+			while (search.advance())
+				children.add(search.path());
+			if (search.status() != Status.COMPLETE || children.size() != 1)
+				return new Result(search.status(), children.size(), toArray(children));
+			path = children.get(0);
+		}
+		int[][] single = {path};
+		return new Result(Status.COMPLETE, 1, single);
+	}
+
+	/* Split the search space into cubes, partial
+	 * assignments from a shallow lookahead that
+	 * together hold every solution exactly once
+	 * Expands breadth first until there are as many
+	 * cubes as asked or none of them can branch
+	 * Returns null if cut short by the deadline
+	 */
+	public int[][] cubes(int count, Deadline deadline)
+	{
+		prepare();
+		SplittableRandom gen = random.split();
+		LinkedList <int[]> open = new LinkedList <int[]> ();
+		Vector <int[]> closed = new Vector <int[]> ();
+		open.add(new int [0]);
+		while (open.size() != 0 && open.size() + closed.size() < count) {
+			Result children = branch(open.removeFirst(), deadline, gen);
+			if (children.status != Status.COMPLETE)
+				return null;
+			if (children.count == 1)
+				closed.add(children.solutions[0]);
+			else
+				open.addAll(Arrays.asList(children.solutions));
+		}
+		closed.addAll(open);
+		return toArray(closed);
+	}
+
+	/* Words of a bitset over all values */
+	int words()
+	{
+		return (max_value - min_value + 64) >> 6;
+	}
+
+	/* Minimum value */
+	int minValue()
+	{
+		return min_value;
+	}
+
+	/* Maximum value */
+	int maxValue()
+	{
+		return max_value;
+	}
+
+	/* Number of pop() calls so far */
+	int generation()
+	{
+		return generation;
+	}
+
+	/* Zero based variables of a prepared constraint */
+	int[] constraintVariables(int con_pos)
+	{
+		return compiled_variables[con_pos];
+	}
+
+	/* Value offsets of a prepared constraint as a bitset */
+	long[] constraintValues(int con_pos)
+	{
+		return compiled_value_bits[con_pos];
+	}
+
+	/* Mark the values of a solution as seen */
+	void mark(long[][] seen, int[] solution)
+	{
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i) {
+			int bit = solution[var_i] - min_value;
+			seen[var_i][bit >> 6] |= 1l << bit;
+		}
 	}
 
 	/* Filter based on a superset of solutions
@@ -728,44 +1968,828 @@ class Combinator implements Iterable <int[]> {
 	 */
 	public int[][] filter(int[][] solutions_superset)
 	{
-		IntSet [] real_domain = new IntSet [variable_count];
-		for (int i = 0 ; i != variable_count ; ++i)
-			real_domain[i] = new IntSet();
+		Result result = filter(solutions_superset, 0, Deadline.never());
+		if (result.status == Status.UNSATISFIABLE)
+			throw new NoSuchElementException();
+		return result.solutions;
+	}
+
+	/* Filter based on a superset of solutions
+	 * within the deadline and refine the domains
+	 * If cut short the rows not checked yet are
+	 * kept so the result is still a superset
+	 */
+	public Result filter(int[][] solutions_superset, Deadline deadline)
+	{
+		return filter(solutions_superset, 0, deadline);
+	}
+
+	/* Filter solutions of an earlier result checking
+	 * only the constraints added since then
+	 */
+	public Result filter(Result previous, Deadline deadline)
+	{
+		return filter(previous.solutions, previous.watermark, deadline);
+	}
+
+	/* Filter a superset of solutions known to satisfy
+	 * the first constraints up to the watermark so only
+	 * later constraints are checked
+	 */
+	public Result filter(int[][] solutions_superset, int watermark, Deadline deadline)
+	{
+		prepare();
+		long[][] seen = new long [variable_count][words()];
 		Vector <int[]> all_solutions = new Vector <int[]> ();
-		next_solution:
-		for (int[] solution : solutions_superset) {
-			/* Check all constraints */
-			for (Constraint con : constraints) {
-				HashSet <Integer> used_values = new HashSet <Integer> ();
-				for (int var_i : con.variables) {
-					int value = solution[var_i];
-					if (!con.values.contains(value))
-						continue next_solution;
-					used_values.add(value);
-				}
-				if (used_values.size() != con.values.size())
-					continue next_solution;
-			}
+		int row = 0;
+		for (; row != solutions_superset.length ; ++row) {
+			/* Check the deadline every few rows */
+			if ((row & poll_mask) == 0 && deadline.expired())
+				break;
+			int[] solution = solutions_superset[row];
+			/* Check new constraints */
+			if (!satisfies(solution, watermark))
+				continue;
 			all_solutions.add(solution);
-			for (int val_i = 0 ; val_i != variable_count ; ++val_i)
-				real_domain[val_i].add(solution[val_i]);
+			mark(seen, solution);
 		}
-		/* If no solution found throw exception */
+		/* Cut short so keep the rest unchecked */
+		if (row != solutions_superset.length) {
+			Status status = deadline.cancelled() ? Status.CANCELLED : Status.TIMEOUT;
+			for (; row != solutions_superset.length ; ++row)
+				all_solutions.add(solutions_superset[row]);
+			return new Result(status, all_solutions.size(), toArray(all_solutions), watermark);
+		}
+		/* If no solution found */
 		if (all_solutions.size() == 0)
-			throw new NoSuchElementException();
+			return new Result(Status.UNSATISFIABLE, 0, new int [0][], constraints.size());
 		/* Cut domains to contain only values found in solutions */
+		cut(seen);
+		return new Result(Status.COMPLETE, all_solutions.size(), toArray(all_solutions),
+		                  constraints.size());
+	}
+
+	/* Compile the solutions into a decision diagram with
+	 * the variables in order and refine the domains
+	 */
+	public Diagram diagram()
+	{
+		int[] order = new int [variable_count];
 		for (int var_i = 0 ; var_i != variable_count ; ++var_i)
-			for (int val_i = 0 ; val_i != gen_domain_size[var_i] ; ++val_i)
-				if (!real_domain[var_i].contains(gen_domain[var_i][val_i])) {
-					gen_domain[var_i][val_i--] = gen_domain[var_i][--gen_domain_size[var_i]];
-					propagation_variables.add(var_i);
+			order[var_i] = var_i + 1;
+		return diagram(order);
+	}
+
+	/* Compile the solutions into a decision diagram
+	 * over an order of the one based variables
+	 */
+	public Diagram diagram(int[] order)
+	{
+		prepare();
+		if (order.length != variable_count)
+			throw new IllegalArgumentException();
+		int[] var_order = new int [variable_count];
+		boolean[] placed = new boolean [variable_count];
+		for (int i = 0 ; i != variable_count ; ++i) {
+			if (order[i] <= 0 || order[i] > variable_count || placed[order[i] - 1])
+				throw new IllegalArgumentException();
+			placed[order[i] - 1] = true;
+			var_order[i] = order[i] - 1;
+		}
+		int[][] domains = new int [variable_count][];
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i)
+			domains[var_i] = Arrays.copyOf(gen_domain[var_i], gen_domain_size[var_i]);
+		return filter(new Diagram(min_value, max_value, var_order, domains));
+	}
+
+	/* Apply the constraints added since a diagram was
+	 * built to it and refine the domains
+	 */
+	public Diagram filter(Diagram diagram)
+	{
+		prepare();
+		int constraint_count = compiled_variables.length;
+		for (int con_pos = diagram.watermark ; con_pos != constraint_count ; ++con_pos)
+			diagram = diagram.apply(compiled_variables[con_pos], compiled_value_bits[con_pos],
+			                        compiled_values[con_pos]);
+		diagram.watermark = constraint_count;
+		if (diagram.count() != 0)
+			cut(diagram.seen());
+		return diagram;
+	}
+
+	/* Empty off heap store for solutions of this engine */
+	public SolutionStore store()
+	{
+		return new SolutionStore(variable_count, min_value, max_value);
+	}
+
+	/* Find all solutions into a store instead of the heap
+	 * Replaces what the store held and refines domains
+	 * if the search covered all the space
+	 */
+	public Result findall(SolutionStore store, Deadline deadline) throws IOException
+	{
+		prepare();
+		long[][] seen = new long [variable_count][words()];
+		Search search = new Search(deadline);
+		long solutions = 0;
+		store.clear();
+		while (search.advance()) {
+			store.add(search.variable);
+			mark(seen, search.variable);
+			solutions++;
+		}
+		store.watermark = constraints.size();
+		return finish(search.status(), solutions, seen, null, true);
+	}
+
+	/* Filter solutions in a store in place checking
+	 * the constraints added since its watermark and
+	 * refine the domains
+	 * If cut short the rows not checked yet are kept
+	 */
+	public Status filter(SolutionStore store, Deadline deadline)
+	{
+		prepare();
+		long[][] seen = new long [variable_count][words()];
+		int[] solution = new int [variable_count];
+		long rows = store.rows;
+		long kept = 0;
+		long row = 0;
+		for (; row != rows ; ++row) {
+			/* Check the deadline every few rows */
+			if ((row & poll_mask) == 0 && deadline.expired())
+				break;
+			store.get(row, solution);
+			if (!satisfies(solution, store.watermark))
+				continue;
+			if (kept != row)
+				store.set(kept, solution);
+			kept++;
+			mark(seen, solution);
+		}
+		/* Cut short so keep the rest unchecked */
+		if (row != rows) {
+			for (; row != rows ; ++row) {
+				store.get(row, solution);
+				store.set(kept++, solution);
+			}
+			store.rows = kept;
+			return deadline.cancelled() ? Status.CANCELLED : Status.TIMEOUT;
+		}
+		store.rows = kept;
+		store.watermark = constraints.size();
+		if (kept == 0)
+			return Status.UNSATISFIABLE;
+		cut(seen);
+		return Status.COMPLETE;
+	}
+
+	/* Store solutions of a result by column */
+	public SolutionColumns columns(Result result)
+	{
+		return new SolutionColumns(result.solutions, variable_count, min_value, max_value, result.watermark);
+	}
+
+	/* Rows per task of the column filter */
+	private static final int filter_rows = 4096;
+
+	/* Filter solutions stored by column in place checking
+	 * the constraints added since their watermark and
+	 * refine the domains, in parallel if a pool is given
+	 * Works on blocks of rows one constraint at a time
+	 * with sequential scans of the columns
+	 * If cut short the rows not checked yet are kept
+	 */
+	public Status filter(final SolutionColumns solutions, final Deadline deadline, ForkJoinPool pool)
+	{
+		prepare();
+		final int from = solutions.watermark;
+		final int to = compiled_variables.length;
+		final int rows = solutions.rows;
+		final boolean[] dead = new boolean [rows];
+		final boolean[] unchecked = new boolean [(rows + filter_rows - 1) / filter_rows];
+		/* Slot of each value for constraints with few values */
+		final int[][] slots = new int [to - from][];
+		for (int con_pos = from ; con_pos != to ; ++con_pos) {
+			if (compiled_values[con_pos] > 64)
+				continue;
+			int[] slot = new int [max_value - min_value + 1];
+			Arrays.fill(slot, -1);
+			int next = 0;
+			long[] bits = compiled_value_bits[con_pos];
+			for (int bit = 0 ; bit != slot.length ; ++bit)
+				if ((bits[bit >> 6] & (1l << bit)) != 0)
+					slot[bit] = next++;
+			slots[con_pos - from] = slot;
+		}
+		/* Check blocks of rows */
+		Vector <Callable <Object>> tasks = new Vector <Callable <Object>> ();
+		for (int block = 0 ; block != unchecked.length ; ++block) {
+			final int lo = block * filter_rows;
+			final int hi = lo + filter_rows < rows ? lo + filter_rows : rows;
+			final int block_i = block;
+			tasks.add(new Callable <Object> () {
+				public Object call()
+				{
+					if (deadline.expired())
+						unchecked[block_i] = true;
+					else
+						check(solutions.columns, lo, hi, from, to, slots, dead);
+					return null;
 				}
-		/* Return solutions as an array */
-		int[][] all_solutions_arr = new int [all_solutions.size()][];
+			});
+		}
+		run(tasks, pool);
+		boolean cut_short = false;
+		for (int block = 0 ; block != unchecked.length ; ++block)
+			if (unchecked[block]) {
+				cut_short = true;
+				int hi = (block + 1) * filter_rows < rows ? (block + 1) * filter_rows : rows;
+				Arrays.fill(dead, block * filter_rows, hi, false);
+			}
+		/* Compact columns and mark values seen */
+		int alive = 0;
+		for (int row = 0 ; row != rows ; ++row)
+			if (!dead[row])
+				alive++;
+		final int kept = alive;
+		final long[][] seen = new long [variable_count][words()];
+		tasks.clear();
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i) {
+			final int column = var_i;
+			tasks.add(new Callable <Object> () {
+				public Object call()
+				{
+					char[] old_column = solutions.columns[column];
+					char[] new_column = new char [kept];
+					long[] bits = seen[column];
+					int j = 0;
+					for (int row = 0 ; row != rows ; ++row)
+						if (!dead[row]) {
+							char offset = old_column[row];
+							new_column[j++] = offset;
+							bits[offset >> 6] |= 1l << offset;
+						}
+					solutions.columns[column] = new_column;
+					return null;
+				}
+			});
+		}
+		run(tasks, pool);
+		solutions.rows = kept;
+		if (cut_short)
+			return deadline.cancelled() ? Status.CANCELLED : Status.TIMEOUT;
+		solutions.watermark = to;
+		if (kept == 0)
+			return Status.UNSATISFIABLE;
+		cut(seen);
+		return Status.COMPLETE;
+	}
+
+	/* Mark rows of a block failing the constraints */
+	private void check(char[][] columns, int lo, int hi, int from, int to,
+	                   int[][] slots, boolean[] dead)
+	{
+		int block = hi - lo;
+		long[] masks = new long [block];
+		int[] bad = new int [block];
+		int[] used = null;
+		for (int con_pos = from ; con_pos != to ; ++con_pos) {
+			int[] con_vars = compiled_variables[con_pos];
+			int[] slot = slots[con_pos - from];
+			if (slot != null) {
+				/* Values used as bit masks, bad if outside */
+				Arrays.fill(masks, 0);
+				Arrays.fill(bad, 0);
+				for (int i = 0 ; i != con_vars.length ; ++i) {
+					char[] column = columns[con_vars[i]];
+					for (int row = 0 ; row != block ; ++row) {
+						int s = slot[column[lo + row]];
+						bad[row] |= s;
+						masks[row] |= 1l << s;
+					}
+				}
+				int values = compiled_values[con_pos];
+				long full = values == 64 ? -1l : (1l << values) - 1;
+				for (int row = 0 ; row != block ; ++row)
+					if (bad[row] < 0 || masks[row] != full)
+						dead[lo + row] = true;
+			} else {
+				/* Many values so count them per row */
+				if (used == null)
+					used = new int [max_value - min_value + 1];
+				long[] con_bits = compiled_value_bits[con_pos];
+				for (int row = 0 ; row != block ; ++row) {
+					if (dead[lo + row])
+						continue;
+					int stamp = lo + row + 1;
+					int count = 0;
+					for (int i = 0 ; i != con_vars.length ; ++i) {
+						int bit = columns[con_vars[i]][lo + row];
+						if ((con_bits[bit >> 6] & (1l << bit)) == 0) {
+							dead[lo + row] = true;
+							break;
+						}
+						if (used[bit] != stamp) {
+							used[bit] = stamp;
+							count++;
+						}
+					}
+					if (count != compiled_values[con_pos])
+						dead[lo + row] = true;
+				}
+				Arrays.fill(used, 0);
+			}
+		}
+	}
+
+	/* Run tasks on the pool or here if none */
+	static void run(Vector <Callable <Object>> tasks, ForkJoinPool pool)
+	{
+		try {
+			if (pool == null)
+				for (Callable <Object> task : tasks)
+					task.call();
+			else
+				for (Future <Object> future : pool.invokeAll(tasks))
+					future.get();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/* Number of constraints so far, the
+	 * watermark of solutions checked now
+	 */
+	public int constraints()
+	{
+		return constraints.size();
+	}
+
+	/* Check a solution against the constraints
+	 * starting from some position
+	 * Constraints must be prepared before
+	 */
+	private boolean satisfies(int[] solution, int from)
+	{
+		for (int con_pos = from ; con_pos != compiled_variables.length ; ++con_pos) {
+			int[] con_vars = compiled_variables[con_pos];
+			long[] con_bits = compiled_value_bits[con_pos];
+			/* New stamp marks values used by this check */
+			if (++check_stamp == 0) {
+				Arrays.fill(check_used, 0);
+				check_stamp = 1;
+			}
+			int used = 0;
+			for (int i = 0 ; i != con_vars.length ; ++i) {
+				int bit = solution[con_vars[i]] - min_value;
+				if (bit < 0 || bit >= check_used.length || (con_bits[bit >> 6] & (1l << bit)) == 0)
+					return false;
+				if (check_used[bit] != check_stamp) {
+					check_used[bit] = check_stamp;
+					used++;
+				}
+			}
+			if (used != compiled_values[con_pos])
+				return false;
+		}
+		return true;
+	}
+
+	/* Enumeration of all solutions that can be cut
+	 * short at its deadline and resumed later on
+	 * Constraints added in between apply to the space
+	 * left and to the solutions already found so the
+	 * work done is never lost
+	 */
+	public class Enumeration {
+
+		/* Cubes of the space left, deepest first */
+		private LinkedList <int[]> frontier;
+
+		/* Solutions found so far */
+		private Vector <int[]> found;
+
+		/* Number of constraints found solutions satisfy */
+		private int watermark;
+
+		/* Generator of the enumeration */
+		private final SplittableRandom generator;
+
+		private Enumeration()
+		{
+			frontier = new LinkedList <int[]> ();
+			frontier.add(new int [0]);
+			found = new Vector <int[]> ();
+			watermark = 0;
+			generator = random.split();
+		}
+
+		/* Check if the whole space has been searched */
+		public boolean finished()
+		{
+			return frontier.size() == 0;
+		}
+
+		/* Continue within the deadline, in parallel if
+		 * a pool is given, and refine the domains
+		 * once all the space has been searched
+		 * Returns all solutions found so far
+		 */
+		public Result resume(Deadline deadline, ForkJoinPool pool)
+		{
+			prepare();
+			/* Apply new constraints to solutions found */
+			if (watermark != constraints.size()) {
+				Vector <int[]> valid = new Vector <int[]> ();
+				for (int[] solution : found)
+					if (satisfies(solution, watermark))
+						valid.add(solution);
+				found = valid;
+				watermark = constraints.size();
+			}
+			/* Drop cubes outside current domains */
+			Iterator <int[]> it = frontier.iterator();
+			while (it.hasNext())
+				if (!inDomains(it.next()))
+					it.remove();
+			if (pool == null)
+				/* Search the cubes one by one */
+				while (frontier.size() != 0 && !deadline.expired()) {
+					Search search = new Search(deadline, frontier.removeFirst(),
+					                           variable_count, generator.split());
+					while (search.hasNext())
+						found.add(search.next());
+					if (search.status() != Status.COMPLETE)
+						frontier.addAll(0, Arrays.asList(search.frontier()));
+				}
+			else if (frontier.size() != 0 && !deadline.expired())
+				explore(deadline, pool);
+			/* Cut short */
+			if (frontier.size() != 0) {
+				Status status = deadline.cancelled() ? Status.CANCELLED : Status.TIMEOUT;
+				if (!deadline.expired())
+					status = Status.BACKTRACK_LIMIT;
+				return new Result(status, found.size(), toArray(found), watermark);
+			}
+			long[][] seen = new long [variable_count][words()];
+			for (int[] solution : found)
+				mark(seen, solution);
+			return finish(Status.COMPLETE, found.size(), seen, found, true);
+		}
+
+		/* Search all cubes in parallel, splitting
+		 * them first so every thread gets work
+		 */
+		private void explore(final Deadline deadline, ForkJoinPool pool)
+		{
+			int enough = pool.getParallelism() * split_leaves;
+			Vector <int[]> closed = new Vector <int[]> ();
+			while (frontier.size() != 0 && frontier.size() + closed.size() < enough) {
+				int[] cube = frontier.removeFirst();
+				Result children = branch(cube, deadline, generator.split());
+				if (children.status != Status.COMPLETE) {
+					frontier.addFirst(cube);
+					break;
+				}
+				if (children.count == 1)
+					closed.add(children.solutions[0]);
+				else
+					frontier.addAll(Arrays.asList(children.solutions));
+			}
+			frontier.addAll(0, closed);
+			/* One task per cube */
+			Vector <Callable <Search>> tasks = new Vector <Callable <Search>> ();
+			for (final int[] cube : frontier) {
+				final SplittableRandom gen = generator.split();
+				tasks.add(new Callable <Search> () {
+					public Search call()
+					{
+						Search search = new Search(deadline, cube, variable_count, gen);
+						search.collect();
+						return search;
+					}
+				});
+			}
+			frontier.clear();
+			for (Future <Search> task : pool.invokeAll(tasks)) {
+				Search search;
+				try {
+					search = task.get();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+				found.addAll(search.collected);
+				if (search.status() != Status.COMPLETE)
+					frontier.addAll(Arrays.asList(search.frontier()));
+			}
+		}
+	}
+
+	/* Start a resumable enumeration of all solutions */
+	public Enumeration enumeration()
+	{
+		return new Enumeration();
+	}
+
+	/* Check if decision path is inside current domains */
+	private boolean inDomains(int[] path)
+	{
+		next_pair:
+		for (int i = 0 ; i != path.length ; i += 2) {
+			int var_i = path[i];
+			for (int val_i = 0 ; val_i != gen_domain_size[var_i] ; ++val_i)
+				if (gen_domain[var_i][val_i] == path[i + 1])
+					continue next_pair;
+			return false;
+		}
+		return true;
+	}
+
+	/* Cut domains to contain only the values seen */
+	void cut(long[][] seen)
+	{
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i)
+			for (int val_i = 0 ; val_i != gen_domain_size[var_i] ; ++val_i) {
+				int bit = gen_domain[var_i][val_i] - min_value;
+				if ((seen[var_i][bit >> 6] & (1l << bit)) == 0)
+					remove(var_i, val_i--);
+			}
+	}
+
+	/* Convert list of solutions to array */
+	private static int[][] toArray(Vector <int[]> list)
+	{
+		int[][] arr = new int [list.size()][];
 		int i = 0;
-		for (int[] solution : all_solutions)
-			all_solutions_arr[i++] = solution;
-		return all_solutions_arr;
+		for (int[] solution : list)
+			arr[i++] = solution;
+		return arr;
+	}
+
+	/* Write the instance in a compact form
+	 * Current domains and all constraints as
+	 * variable length numbers, used to hand it
+	 * over to worker processes
+	 */
+	public void write(DataOutput out) throws IOException
+	{
+		prepare();
+		materialize();
+		writeNumber(out, variable_count);
+		out.writeInt(min_value);
+		out.writeInt(max_value);
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i) {
+			writeNumber(out, gen_domain_size[var_i]);
+			for (int val_i = 0 ; val_i != gen_domain_size[var_i] ; ++val_i)
+				writeNumber(out, gen_domain[var_i][val_i] - min_value);
+		}
+		writeNumber(out, constraints.size());
+		for (Constraint con : constraints) {
+			writeNumber(out, con.variables.size());
+			for (int var_i : con.variables)
+				writeNumber(out, var_i);
+			writeNumber(out, con.values.size());
+			for (int value : con.values)
+				writeNumber(out, value - min_value);
+		}
+	}
+
+	/* Read an instance written by write() */
+	public static Combinator read(DataInput in) throws IOException
+	{
+		int vars = (int) readNumber(in);
+		int min = in.readInt();
+		int max = in.readInt();
+		Combinator engine = new Combinator(vars, min, max);
+		int[][] domains = new int [vars][];
+		for (int var_i = 0 ; var_i != vars ; ++var_i) {
+			domains[var_i] = new int [(int) readNumber(in)];
+			for (int val_i = 0 ; val_i != domains[var_i].length ; ++val_i)
+				domains[var_i][val_i] = (int) readNumber(in) + min;
+		}
+		int constraint_count = (int) readNumber(in);
+		for (int con_pos = 0 ; con_pos != constraint_count ; ++con_pos) {
+			int[] con_vars = new int [(int) readNumber(in)];
+			for (int i = 0 ; i != con_vars.length ; ++i)
+				con_vars[i] = (int) readNumber(in) + 1;
+			int[] con_vals = new int [(int) readNumber(in)];
+			for (int i = 0 ; i != con_vals.length ; ++i)
+				con_vals[i] = (int) readNumber(in) + min;
+			engine.constraint(con_vars, con_vals);
+		}
+		/* Domains were already propagated, move their
+		 * values to the front keeping the rest behind
+		 */
+		for (int var_i = 0 ; var_i != vars ; ++var_i) {
+			int[] domain = engine.gen_domain[var_i];
+			int[] position = engine.gen_position[var_i];
+			for (int val_i = 0 ; val_i != domains[var_i].length ; ++val_i) {
+				int pos = position[domains[var_i][val_i] - min];
+				position[domain[val_i] - min] = pos;
+				position[domains[var_i][val_i] - min] = val_i;
+				swap(domain, val_i, pos);
+			}
+			engine.gen_domain_size[var_i] = domains[var_i].length;
+			engine.gen_version[var_i] = ++engine.domain_clock;
+		}
+		engine.propagation_variables.clear();
+		return engine;
+	}
+
+	/* Marks the start of a snapshot */
+	private static final int snapshot_magic = 0x47374353;
+
+	/* Version of the snapshot layout */
+	private static final int snapshot_version = 1;
+
+	/* Bytes of the snapshot of the current state */
+	public int snapshotSize()
+	{
+		prepare();
+		long ints = 7 + variable_count * 2l + variable_count * (long) (max_value - min_value + 1) +
+		            constraints.size() * 2l;
+		for (int con_pos = 0 ; con_pos != constraints.size() ; ++con_pos)
+			ints += compiled_variables[con_pos].length;
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i)
+			ints += compiled_attach[var_i].length;
+		long bytes = ints * 4 + constraints.size() * (long) words() * 8;
+		if (bytes > Integer.MAX_VALUE)
+			throw new IllegalStateException();
+		return (int) bytes;
+	}
+
+	/* Snapshot of the current state in a new buffer
+	 * ready to be read
+	 */
+	public ByteBuffer snapshot()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(snapshotSize());
+		snapshot(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/* Write a snapshot of the current state, domains
+	 * and constraints in compiled form as flat little
+	 * endian arrays so restoring is a few bulk copies
+	 * Open checkpoints are not kept, the snapshot holds
+	 * the state inside them
+	 */
+	public void snapshot(ByteBuffer buffer)
+	{
+		prepare();
+		int constraint_count = constraints.size();
+		int value_count = max_value - min_value + 1;
+		ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(snapshot_magic);
+		buffer.putInt(snapshot_version);
+		buffer.putInt(variable_count);
+		buffer.putInt(min_value);
+		buffer.putInt(max_value);
+		buffer.putInt(constraint_count);
+		buffer.putInt(words());
+		putInts(buffer, gen_domain_size, variable_count);
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i)
+			putInts(buffer, gen_domain[var_i], value_count);
+		for (int con_pos = 0 ; con_pos != constraint_count ; ++con_pos)
+			buffer.putInt(compiled_variables[con_pos].length);
+		putInts(buffer, compiled_values, constraint_count);
+		for (int con_pos = 0 ; con_pos != constraint_count ; ++con_pos)
+			putInts(buffer, compiled_variables[con_pos], compiled_variables[con_pos].length);
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i)
+			buffer.putInt(compiled_attach[var_i].length);
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i)
+			putInts(buffer, compiled_attach[var_i], compiled_attach[var_i].length);
+		for (int con_pos = 0 ; con_pos != constraint_count ; ++con_pos) {
+			buffer.asLongBuffer().put(compiled_value_bits[con_pos]);
+			buffer.position(buffer.position() + compiled_value_bits[con_pos].length * 8);
+		}
+		buffer.order(order);
+	}
+
+	/* Restore an engine from a snapshot
+	 * Constraint objects are only built if constraints
+	 * are added, popped or propagated later so an engine
+	 * that only searches never builds them
+	 */
+	public static Combinator restore(ByteBuffer buffer)
+	{
+		ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.getInt() != snapshot_magic || buffer.getInt() != snapshot_version)
+			throw new IllegalArgumentException();
+		int vars = buffer.getInt();
+		int min = buffer.getInt();
+		int max = buffer.getInt();
+		int constraint_count = buffer.getInt();
+		int words = buffer.getInt();
+		Combinator engine = new Combinator(vars, min, max);
+		if (words != engine.words())
+			throw new IllegalArgumentException();
+		int value_count = max - min + 1;
+		getInts(buffer, engine.gen_domain_size, vars);
+		for (int var_i = 0 ; var_i != vars ; ++var_i) {
+			int[] domain = engine.gen_domain[var_i];
+			getInts(buffer, domain, value_count);
+			for (int val_i = 0 ; val_i != value_count ; ++val_i)
+				engine.gen_position[var_i][domain[val_i] - min] = val_i;
+			engine.gen_version[var_i] = ++engine.domain_clock;
+		}
+		engine.compiled_variables = new int [constraint_count][];
+		for (int con_pos = 0 ; con_pos != constraint_count ; ++con_pos)
+			engine.compiled_variables[con_pos] = new int [buffer.getInt()];
+		engine.compiled_values = new int [constraint_count];
+		getInts(buffer, engine.compiled_values, constraint_count);
+		for (int con_pos = 0 ; con_pos != constraint_count ; ++con_pos)
+			getInts(buffer, engine.compiled_variables[con_pos], engine.compiled_variables[con_pos].length);
+		engine.compiled_attach = new int [vars][];
+		for (int var_i = 0 ; var_i != vars ; ++var_i)
+			engine.compiled_attach[var_i] = new int [buffer.getInt()];
+		for (int var_i = 0 ; var_i != vars ; ++var_i)
+			getInts(buffer, engine.compiled_attach[var_i], engine.compiled_attach[var_i].length);
+		engine.compiled_value_bits = new long [constraint_count][words];
+		for (int con_pos = 0 ; con_pos != constraint_count ; ++con_pos) {
+			buffer.asLongBuffer().get(engine.compiled_value_bits[con_pos]);
+			buffer.position(buffer.position() + words * 8);
+		}
+		buffer.order(order);
+		engine.check_used = new int [value_count];
+		engine.constraints.setSize(constraint_count);
+		engine.constraints_compiled_only = true;
+		return engine;
+	}
+
+	/* Write a snapshot to a file */
+	public void snapshot(File file) throws IOException
+	{
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(0);
+			ByteBuffer buffer = snapshot();
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} finally {
+			out.close();
+		}
+	}
+
+	/* Restore an engine from a snapshot file mapping it */
+	public static Combinator restore(File file) throws IOException
+	{
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			return restore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} catch (RuntimeException e) {
+			throw new IOException("Bad snapshot " + file, e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/* Bulk copy of the first ints of an array */
+	private static void putInts(ByteBuffer buffer, int[] a, int length)
+	{
+		buffer.asIntBuffer().put(a, 0, length);
+		buffer.position(buffer.position() + length * 4);
+	}
+
+	/* Bulk read into the first ints of an array */
+	private static void getInts(ByteBuffer buffer, int[] a, int length)
+	{
+		buffer.asIntBuffer().get(a, 0, length);
+		buffer.position(buffer.position() + length * 4);
+	}
+
+	/* Write unsigned number 7 bits per byte */
+	static void writeNumber(DataOutput out, long n) throws IOException
+	{
+		while ((n & ~0x7fl) != 0) {
+			out.writeByte((int) (n & 0x7f) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte((int) n);
+	}
+
+	/* Read number written by writeNumber() */
+	static long readNumber(DataInput in) throws IOException
+	{
+		long n = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			n |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return n;
 	}
 
 	/* Swap elements of array */
@@ -779,15 +2803,17 @@ class Combinator implements Iterable <int[]> {
 	/* Testing main */
 	public static void main(String[] args)
 	{
+		SplittableRandom random = RunSeed.generator("Combinator.main");
 		int size = 32;
-		int[] mapping = randomMapping(size);
-		mapping = distinctMapping(size);
+		int[] mapping = randomMapping(size, random);
+		mapping = distinctMapping(size, random);
 		System.out.println("Mapping:  " + toString(mapping));
 		HashSet <Integer> query = new HashSet <Integer> ();
 		HashSet <Integer> result = new HashSet <Integer> ();
 		int qsize = (int) Math.ceil(Math.sqrt(size));
 		int dsize, turn = 1;
 		Combinator engine = new Combinator(size);
+		engine.seed(random.nextLong());
 		engine.timeoutLimit(1000);
 		int reds = 0;
 		do {
@@ -839,18 +2865,16 @@ class Combinator implements Iterable <int[]> {
 		System.out.println("\nReductions:  " + reds);
 	}
 
-	private static int[] randomMapping(int size)
+	private static int[] randomMapping(int size, SplittableRandom gen)
 	{
-		Random gen = new Random();
 		int[] mapping = new int [size];
 		for (int i = 0 ; i != size ; ++i)
 			mapping[i] = gen.nextInt(size) + 1;
 		return mapping;
 	}
 
-	private static int[] distinctMapping(int size)
+	private static int[] distinctMapping(int size, SplittableRandom gen)
 	{
-		Random gen = new Random();
 		int[] mapping = new int [size];
 		for (int i = 0 ; i != size ; ++i)
 			mapping[i] = i + 1;
@@ -0,0 +1,213 @@
+package mapthatset.g7;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Cube and conquer search over local worker JVMs
+ * Splits the search space of an engine into cubes,
+ * farms them out to CubeWorker processes on this
+ * machine over pipes and merges their counts,
+ * values seen and solutions back in the engine
+ * Each worker has its own heap and GC so a big box
+ * can be used without one giant heap
+ */
+public class CubeLauncher {
+
+	/* Cubes per worker so faster workers take more */
+	private static final int cubes_per_worker = 32;
+
+	/* Number of worker processes */
+	private final int worker_count;
+
+	/* Options for the worker JVMs like -Xmx */
+	private final String[] jvm_options;
+
+	/* Worker processes, started on first use */
+	private Process[] processes;
+
+	/* Pipes to the workers */
+	private DataOutputStream[] to_worker;
+
+	/* Pipes from the workers */
+	private DataInputStream[] from_worker;
+
+	/* Seeds the searches of the cubes */
+	private final SplittableRandom random = RunSeed.generator(CubeLauncher.class);
+
+	/* Launcher for some workers with some JVM options */
+	public CubeLauncher(int workers, String ... options)
+	{
+		if (workers <= 0)
+			throw new IllegalArgumentException();
+		worker_count = workers;
+		jvm_options = Arrays.copyOf(options, options.length);
+		processes = null;
+	}
+
+	/* Find all solutions like Combinator.findall() */
+	public Combinator.Result findall(Combinator engine, Deadline deadline) throws IOException
+	{
+		return run(engine, true, true, deadline);
+	}
+
+	/* Refine domains like Combinator.refine() */
+	public Combinator.Result refine(Combinator engine, Deadline deadline) throws IOException
+	{
+		return run(engine, false, true, deadline);
+	}
+
+	/* Count solutions like Combinator.count() */
+	public Combinator.Result count(Combinator engine, Deadline deadline) throws IOException
+	{
+		return run(engine, false, false, deadline);
+	}
+
+	/* Stop all worker processes */
+	public void close() throws IOException
+	{
+		if (processes == null)
+			return;
+		for (int w = 0 ; w != worker_count ; ++w) {
+			to_worker[w].writeByte(CubeWorker.exit);
+			to_worker[w].flush();
+			to_worker[w].close();
+		}
+		for (int w = 0 ; w != worker_count ; ++w)
+			try {
+				processes[w].waitFor();
+			} catch (InterruptedException e) {
+				processes[w].destroy();
+			}
+		processes = null;
+	}
+
+	/* Start the worker processes */
+	private void start() throws IOException
+	{
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Vector <String> command = new Vector <String> ();
+		command.add(java);
+		command.addAll(Arrays.asList(jvm_options));
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(CubeWorker.class.getName());
+		processes = new Process [worker_count];
+		to_worker = new DataOutputStream [worker_count];
+		from_worker = new DataInputStream [worker_count];
+		for (int w = 0 ; w != worker_count ; ++w) {
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+			processes[w] = builder.start();
+			to_worker[w] = new DataOutputStream(new BufferedOutputStream(processes[w].getOutputStream()));
+			from_worker[w] = new DataInputStream(new BufferedInputStream(processes[w].getInputStream()));
+		}
+	}
+
+	/* Search all cubes on the workers and merge results */
+	private Combinator.Result run(final Combinator engine, final boolean return_solutions,
+	                              boolean refine_domains, final Deadline deadline) throws IOException
+	{
+		final int[][] cubes = engine.cubes(worker_count * cubes_per_worker, deadline);
+		if (cubes == null) {
+			Combinator.Status status = deadline.cancelled() ?
+				Combinator.Status.CANCELLED : Combinator.Status.TIMEOUT;
+			return new Combinator.Result(status, 0, null);
+		}
+		if (processes == null)
+			start();
+		/* Send a snapshot of the instance to all workers */
+		byte[] instance = engine.snapshot().array();
+		for (int w = 0 ; w != worker_count ; ++w) {
+			to_worker[w].writeByte(CubeWorker.instance);
+			to_worker[w].writeInt(instance.length);
+			to_worker[w].write(instance);
+		}
+		/* Seed of each cube does not depend on the worker */
+		final long[] seeds = new long [cubes.length];
+		for (int i = 0 ; i != cubes.length ; ++i)
+			seeds[i] = random.nextLong();
+		/* Results per cube */
+		final long[] counts = new long [cubes.length];
+		final Combinator.Status[] statuses = new Combinator.Status [cubes.length];
+		final int[][][] solutions = new int [cubes.length][][];
+		final long[][] seen = new long [engine.variables()][engine.words()];
+		final AtomicInteger next = new AtomicInteger(0);
+		final IOException[] failure = new IOException [1];
+		/* One thread feeds each worker */
+		Thread[] feeders = new Thread [worker_count];
+		for (int w = 0 ; w != worker_count ; ++w) {
+			final int worker = w;
+			feeders[w] = new Thread(new Runnable() {
+				public void run()
+				{
+					try {
+						int i;
+						while (!deadline.expired() && (i = next.getAndIncrement()) < cubes.length) {
+							DataOutputStream out = to_worker[worker];
+							out.writeByte(CubeWorker.cube);
+							out.writeByte(return_solutions ? CubeWorker.return_solutions : 0);
+							out.writeLong(seeds[i]);
+							out.writeLong(deadline.remaining());
+							CubeWorker.writePath(out, cubes[i]);
+							out.flush();
+							DataInputStream in = from_worker[worker];
+							statuses[i] = Combinator.Status.values()[in.readUnsignedByte()];
+							counts[i] = Combinator.readNumber(in);
+							long[][] cube_seen = new long [seen.length][seen[0].length];
+							for (int var_i = 0 ; var_i != seen.length ; ++var_i)
+								for (int j = 0 ; j != seen[var_i].length ; ++j)
+									cube_seen[var_i][j] = in.readLong();
+							synchronized (seen) {
+								for (int var_i = 0 ; var_i != seen.length ; ++var_i)
+									for (int j = 0 ; j != seen[var_i].length ; ++j)
+										seen[var_i][j] |= cube_seen[var_i][j];
+							}
+							if (return_solutions) {
+								solutions[i] = new int [(int) Combinator.readNumber(in)][seen.length];
+								for (int[] solution : solutions[i])
+									for (int var_i = 0 ; var_i != solution.length ; ++var_i)
+										solution[var_i] = CubeWorker.readSigned(in);
+							}
+						}
+					} catch (IOException e) {
+						synchronized (failure) {
+							failure[0] = e;
+						}
+					}
+				}
+			});
+			feeders[w].start();
+		}
+		for (int w = 0 ; w != worker_count ; ++w)
+			try {
+				feeders[w].join();
+			} catch (InterruptedException e) {
+				deadline.cancel();
+				w--;
+			}
+		if (failure[0] != null)
+			throw failure[0];
+		/* Merge in the order of the cubes */
+		Combinator.Status status = Combinator.Status.COMPLETE;
+		long count = 0;
+		Vector <int[]> all_solutions = return_solutions ? new Vector <int[]> () : null;
+		for (int i = 0 ; i != cubes.length ; ++i) {
+			if (statuses[i] == null)
+				status = deadline.cancelled() ? Combinator.Status.CANCELLED : Combinator.Status.TIMEOUT;
+			else if (statuses[i] != Combinator.Status.COMPLETE)
+				status = statuses[i];
+			count += counts[i];
+			if (return_solutions && solutions[i] != null)
+				all_solutions.addAll(Arrays.asList(solutions[i]));
+		}
+		return engine.finish(status, count, seen, all_solutions, refine_domains);
+	}
+}
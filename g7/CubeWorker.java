@@ -0,0 +1,113 @@
+package mapthatset.g7;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+
+/* Worker process of a cube and conquer search
+ * Started by CubeLauncher and talks to it
+ * through its standard input and output
+ * Gets an instance and then searches the
+ * cubes it is handed one at a time
+ */
+public class CubeWorker {
+
+	/* Message tags from the launcher */
+	static final int exit = 0;
+	static final int instance = 1;
+	static final int cube = 2;
+
+	/* Job flag to send back the solutions */
+	static final int return_solutions = 1;
+
+	public static void main(String[] args) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(System.out));
+		Combinator engine = null;
+		for (;;) {
+			int tag;
+			try {
+				tag = in.readUnsignedByte();
+			} catch (EOFException e) {
+				return;
+			}
+			if (tag == exit)
+				return;
+			if (tag == instance) {
+				byte[] snapshot = new byte [in.readInt()];
+				in.readFully(snapshot);
+				engine = Combinator.restore(ByteBuffer.wrap(snapshot));
+				engine.prepare();
+				continue;
+			}
+			if (tag != cube || engine == null)
+				throw new IOException("Unexpected message " + tag);
+			/* Read the job */
+			int flags = in.readUnsignedByte();
+			long seed = in.readLong();
+			long nanos = in.readLong();
+			int[] path = readPath(in);
+			/* Search the cube */
+			long[][] seen = new long [engine.variables()][engine.words()];
+			Combinator.Result result = engine.solve(path, (flags & return_solutions) != 0,
+			                                        Deadline.afterNanos(nanos),
+			                                        new SplittableRandom(seed), seen);
+			/* Reply with status, count, values seen and solutions */
+			out.writeByte(result.status.ordinal());
+			Combinator.writeNumber(out, result.count);
+			for (int var_i = 0 ; var_i != seen.length ; ++var_i)
+				for (int i = 0 ; i != seen[var_i].length ; ++i)
+					out.writeLong(seen[var_i][i]);
+			if ((flags & return_solutions) != 0) {
+				int[][] solutions = result.solutions == null ? new int [0][] : result.solutions;
+				Combinator.writeNumber(out, solutions.length);
+				for (int[] solution : solutions)
+					for (int var_i = 0 ; var_i != solution.length ; ++var_i)
+						writeSigned(out, solution[var_i]);
+			}
+			out.flush();
+		}
+	}
+
+	/* Write decision path of (variable, value) pairs */
+	static void writePath(DataOutput out, int[] path) throws IOException
+	{
+		Combinator.writeNumber(out, path.length / 2);
+		for (int i = 0 ; i != path.length ; i += 2) {
+			Combinator.writeNumber(out, path[i]);
+			writeSigned(out, path[i + 1]);
+		}
+	}
+
+	/* Read decision path written by writePath() */
+	static int[] readPath(DataInput in) throws IOException
+	{
+		int[] path = new int [(int) Combinator.readNumber(in) * 2];
+		for (int i = 0 ; i != path.length ; i += 2) {
+			path[i] = (int) Combinator.readNumber(in);
+			path[i + 1] = readSigned(in);
+		}
+		return path;
+	}
+
+	/* Write signed number zigzag encoded */
+	static void writeSigned(DataOutput out, int n) throws IOException
+	{
+		Combinator.writeNumber(out, ((n << 1) ^ (n >> 31)) & 0xffffffffl);
+	}
+
+	/* Read number written by writeSigned() */
+	static int readSigned(DataInput in) throws IOException
+	{
+		int n = (int) Combinator.readNumber(in);
+		return (n >>> 1) ^ -(n & 1);
+	}
+}
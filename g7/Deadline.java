@@ -0,0 +1,101 @@
+package mapthatset.g7;
+
+/* Deadline and cancellation token for searches
+ * Based on System.nanoTime() and cheap enough
+ * to be polled every few hundred search nodes
+ * Any thread can cancel it and the search that
+ * polls it stops at the next check
+ */
+public class Deadline {
+
+	/* Time limit in System.nanoTime() units */
+	private final long limit;
+
+	/* There is a time limit at all */
+	private final boolean bounded;
+
+	/* Deadline this one was sliced from */
+	private final Deadline parent;
+
+	/* Cancelled from some thread */
+	private volatile boolean cancelled;
+
+	private Deadline(long limit, boolean bounded, Deadline parent)
+	{
+		this.limit = limit;
+		this.bounded = bounded;
+		this.parent = parent;
+		cancelled = false;
+	}
+
+	/* Deadline that never expires
+	 * but can still be cancelled
+	 */
+	public static Deadline never()
+	{
+		return new Deadline(0, false, null);
+	}
+
+	/* Deadline that expires after some milliseconds
+	 * Zero or negative means it has already expired
+	 */
+	public static Deadline after(long millis)
+	{
+		return afterNanos(millis > Long.MAX_VALUE / 1000000 ? Long.MAX_VALUE : millis * 1000000);
+	}
+
+	/* Deadline that expires after some nanoseconds */
+	public static Deadline afterNanos(long nanos)
+	{
+		if (nanos == Long.MAX_VALUE)
+			return never();
+		return new Deadline(System.nanoTime() + nanos, true, null);
+	}
+
+	/* Child deadline that expires after some milliseconds
+	 * or when this one expires, whichever comes first
+	 * Cancelling this one also cancels the child
+	 */
+	public Deadline slice(long millis)
+	{
+		long nanos = millis > Long.MAX_VALUE / 1000000 ? Long.MAX_VALUE : millis * 1000000;
+		long now = System.nanoTime();
+		if (nanos == Long.MAX_VALUE)
+			return new Deadline(limit, bounded, this);
+		long child = now + nanos;
+		if (bounded && limit - child < 0)
+			child = limit;
+		return new Deadline(child, true, this);
+	}
+
+	/* Cancel the search, safe from any thread */
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	/* Check if cancelled by some thread */
+	public boolean cancelled()
+	{
+		return cancelled || (parent != null && parent.cancelled());
+	}
+
+	/* Check if time is over or cancelled */
+	public boolean expired()
+	{
+		if (cancelled())
+			return true;
+		return bounded && System.nanoTime() - limit >= 0;
+	}
+
+	/* Nanoseconds left, Long.MAX_VALUE if unbounded */
+	public long remaining()
+	{
+		if (cancelled())
+			return 0;
+		if (!bounded)
+			return Long.MAX_VALUE;
+		long left = limit - System.nanoTime();
+		return left > 0 ? left : 0;
+	}
+}
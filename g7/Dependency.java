@@ -4,11 +4,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
 
 public class Dependency {
 
 	/* Solutions */
-	private int[][] solutions;
+	private SolutionStore solutions;
 
 	/* CSP engine */
 	private Combinator csp;
@@ -19,6 +20,15 @@ public class Dependency {
 	/* Functional dependency */
 	private HashMap <Integer, Pair <int[], HashMap <ArrayList <Integer>, Integer>>> dependency;
 
+	/* Solutions by column */
+	private SolutionColumns columns;
+
+	/* Finds dependencies following the columns */
+	private DependencyFinder finder;
+
+	/* Dependencies checked over the columns */
+	private HashMap <Integer, DependencyFinder.Implication> implied;
+
 	/* Initialize dependency class */
 	public Dependency(Combinator csp)
 	{
@@ -26,12 +36,28 @@ public class Dependency {
 		this.csp = csp;
 		exhaust = new HashMap <Integer, Pair <int[], HashSet <Integer>>> ();
 		dependency = new HashMap <Integer, Pair <int[], HashMap <ArrayList <Integer>, Integer>>> ();
+		columns = null;
+		finder = new DependencyFinder(2);
+		implied = new HashMap <Integer, DependencyFinder.Implication> ();
 	}
 
-	/* Update solutions */
-	public void update(int[][] solutions)
+	/* Update solutions streaming from a store */
+	public void update(SolutionStore solutions)
 	{
 		this.solutions = solutions;
+		columns = null;
+	}
+
+	/* Update solutions by column and find all the
+	 * dependencies of one or two variables at once
+	 * Partitions are refined if the columns were
+	 * filtered since the last update
+	 */
+	public Combinator.Status update(SolutionColumns solutions, Deadline deadline, ForkJoinPool pool)
+	{
+		this.solutions = null;
+		columns = solutions;
+		return finder.update(solutions, deadline, pool);
 	}
 
 	/* Check if first variable is dependent on a
@@ -39,21 +65,30 @@ public class Dependency {
 	 */
 	public boolean check(int to, int ... from)
 	{
+		if (columns != null) {
+			if (exhaust.containsKey(to) || implied.containsKey(to))
+				return true;
+			DependencyFinder.Implication implication = finder.check(to, from);
+			if (implication == null)
+				return false;
+			implied.put(to, implication);
+			return true;
+		}
 		if (solutions == null)
 			return exhaust(to, from);
 		if (exhaust.containsKey(to) || dependency.containsKey(to))
 			return true;
 		Arrays.sort(from);
 		HashMap <ArrayList <Integer>, Integer> value_map = new HashMap <ArrayList <Integer>, Integer> ();
-		for (int[] solution : solutions) {
+		for (long row = 0 ; row != solutions.size() ; ++row) {
 			ArrayList <Integer> vector = new ArrayList <Integer> ();
 			for (int i = 0 ; i != from.length ; ++i)
-				vector.add(solution[from[i] - 1]);
-			int to_value = solution[to - 1];
+				vector.add(solutions.value(row, from[i] - 1));
+			int to_value = solutions.value(row, to - 1);
 			Integer target_value = value_map.get(vector);
 			if (target_value != null && target_value != to_value)
 				return false;
-			value_map.put(vector, target_value);
+			value_map.put(vector, to_value);
 		}
 		dependency.put(to, new Pair <int[], HashMap <ArrayList <Integer>, Integer>> (from, value_map));
 		return true;
@@ -65,13 +100,13 @@ public class Dependency {
 		if (exhaust.containsKey(to))
 			return true;
 		HashSet <Integer> values = new HashSet <Integer> ();
-		int[] domain = csp.domain(to);
-		for (int i = 0 ; i != domain.length ; ++i)
-			values.add(domain[i]);
+		Combinator.DomainView domain = csp.view(to);
+		for (int i = 0 ; i != domain.size() ; ++i)
+			values.add(domain.value(i));
 		for (int v = 0 ; v != from.length ; ++v) {
-			domain = csp.domain(from[v]);
-			for (int i = 0 ; i != domain.length ; ++i)
-				values.add(domain[i]);
+			domain = csp.view(from[v]);
+			for (int i = 0 ; i != domain.size() ; ++i)
+				values.add(domain.value(i));
 		}
 		if (values.size() != from.length + 1)
 			return false;
@@ -79,31 +114,31 @@ public class Dependency {
 		return true;
 	}
 
-	/* Extending to create array of hash sets */
-	private static class IntSet extends HashSet <Integer> {
-		private static final long serialVersionUID = 1L;
-	}
-
 	/* Resolve all dependencies and return
 	 * final solution with all variables set
 	 * If some variable is ambiguous return null
 	 */
 	public int[] solve()
 	{
+		if (columns != null)
+			return solveColumns();
 		if (solutions == null)
 			return null;
-		int variable_count = solutions[0].length;
-		IntSet [] real_domain = new IntSet [variable_count];
-		for (int[] solution : solutions)
-			for (int val_i = 0 ; val_i != variable_count ; ++val_i)
-				real_domain[val_i].add(solution[val_i]);
+		int variable_count = solutions.variables();
+		long[][] counts = solutions.marginals();
 		int[] solution = new int [variable_count];
 		for (int i = 1 ; i <= variable_count ; ++i) {
 			if (dependency.containsKey(i))
 				continue;
-			if (real_domain[i-1].size() != 1)
+			/* Single value in all solutions */
+			int values = 0;
+			for (int val_i = 0 ; val_i != counts[i-1].length ; ++val_i)
+				if (counts[i-1][val_i] != 0) {
+					solution[i-1] = val_i + solutions.min_value;
+					values++;
+				}
+			if (values != 1)
 				return null;
-			solution[i-1] = real_domain[i-1].iterator().next();
 		}
 		for (int to : dependency.keySet()) {
 			int[] vars = dependency.get(to).fst;
@@ -121,4 +156,62 @@ public class Dependency {
 		}
 		return solution;
 	}
+
+	/* Resolve over the columns: variables with one
+	 * value are known and dependencies found or checked
+	 * give the rest until all are known or none moves
+	 */
+	private int[] solveColumns()
+	{
+		int variable_count = columns.variables();
+		if (columns.size() == 0)
+			return null;
+		int[] solution = new int [variable_count];
+		boolean[] known = new boolean [variable_count];
+		for (int i = 1 ; i <= variable_count ; ++i)
+			if (finder.constant(i)) {
+				solution[i-1] = columns.value(0, i - 1);
+				known[i-1] = true;
+			}
+		ArrayList <DependencyFinder.Implication> implications =
+			new ArrayList <DependencyFinder.Implication> (finder.implications());
+		implications.addAll(implied.values());
+		boolean moved = true;
+		while (moved) {
+			moved = false;
+			next_implication:
+			for (DependencyFinder.Implication implication : implications) {
+				if (known[implication.to - 1])
+					continue;
+				for (int i = 0 ; i != implication.from.length ; ++i)
+					if (!known[implication.from[i] - 1])
+						continue next_implication;
+				int value = implication.value(solution);
+				if (value < columns.min_value)
+					return null;
+				solution[implication.to - 1] = value;
+				known[implication.to - 1] = moved = true;
+			}
+			next_exhaust:
+			for (int to : exhaust.keySet()) {
+				if (known[to-1])
+					continue;
+				int[] vars = exhaust.get(to).fst;
+				HashSet <Integer> vals = new HashSet <Integer> (exhaust.get(to).snd);
+				for (int i = 0 ; i != vars.length ; ++i) {
+					if (!known[vars[i]-1])
+						continue next_exhaust;
+					vals.remove(solution[vars[i]-1]);
+				}
+				if (vals.size() != 1)
+					return null;
+				solution[to-1] = vals.iterator().next();
+				known[to-1] = moved = true;
+			}
+		}
+		for (int i = 0 ; i != variable_count ; ++i)
+			if (!known[i])
+				return null;
+		return solution;
+	}
 }
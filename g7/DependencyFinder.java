@@ -0,0 +1,494 @@
+package mapthatset.g7;
+
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+/* Discovery of functional dependencies between
+ * variables over a set of solutions, TANE style
+ * Each variable has a stripped partition of the
+ * solutions, the classes of two or more rows with
+ * the same value, and a set of variables determines
+ * another if every class of its partition has one
+ * value of the other variable
+ * Sets are searched level by level up to a size and
+ * only minimal dependencies are kept
+ * Partitions follow the solutions: after a filter
+ * only the rows removed are dropped from them and
+ * dependencies found stay true, just the candidates
+ * that failed are checked again
+ */
+public class DependencyFinder {
+
+	/* Largest set of variables packed with a value */
+	private static final int arity_limit = 3;
+
+	/* Rows of a stripped partition class after class */
+	private static class Partition {
+
+		/* Rows of all classes */
+		int[] rows;
+
+		/* Start of each class in the rows, end last */
+		int[] start;
+
+		Partition(int[] rows, int[] start)
+		{
+			this.rows = rows;
+			this.start = start;
+		}
+
+		/* Number of classes */
+		int classes()
+		{
+			return start.length - 1;
+		}
+	}
+
+	/* Variables of a set determine another variable */
+	public class Implication {
+
+		/* Sorted variables determining, one based */
+		public final int[] from;
+
+		/* Variable determined, one based */
+		public final int to;
+
+		/* Packed values of the variables determining */
+		private long[] keys;
+
+		/* Value offset of the variable for each key */
+		private char[] values;
+
+		private Implication(int[] from, int to)
+		{
+			this.from = from;
+			this.to = to;
+			keys = null;
+			values = null;
+		}
+
+		/* Value of the variable determined given the
+		 * values of a solution for the others, one less
+		 * than the minimum value if never seen together
+		 */
+		public int value(int[] solution)
+		{
+			if (keys == null)
+				table();
+			long key = 0;
+			for (int i = 0 ; i != from.length ; ++i)
+				key = key << 16 | (solution[from[i] - 1] - min_value);
+			int pos = Arrays.binarySearch(keys, key);
+			return pos < 0 ? min_value - 1 : values[pos] + min_value;
+		}
+
+		/* Build the table of values from the rows */
+		private void table()
+		{
+			/* Sorted as unsigned so keys come out in order */
+			long[] packed = new long [rows];
+			for (int row = 0 ; row != rows ; ++row)
+				packed[row] = (key(from, row) << 16 | columns[to - 1][row]) ^ Long.MIN_VALUE;
+			Arrays.sort(packed);
+			for (int row = 0 ; row != rows ; ++row)
+				packed[row] ^= Long.MIN_VALUE;
+			int count = 0;
+			for (int row = 0 ; row != rows ; ++row)
+				if (row == 0 || packed[row] >>> 16 != packed[row - 1] >>> 16)
+					count++;
+			long[] new_keys = new long [count];
+			char[] new_values = new char [count];
+			for (int row = 0, i = 0 ; row != rows ; ++row)
+				if (row == 0 || packed[row] >>> 16 != packed[row - 1] >>> 16) {
+					new_keys[i] = packed[row] >>> 16;
+					new_values[i++] = (char) packed[row];
+				}
+			values = new_values;
+			keys = new_keys;
+		}
+	}
+
+	/* Largest number of variables determining another */
+	private final int max_arity;
+
+	/* Number of variables */
+	private int variable_count;
+
+	/* Minimum value */
+	private int min_value;
+
+	/* Columns of the solutions last seen */
+	private char[][] columns;
+
+	/* Number of solutions last seen */
+	private int rows;
+
+	/* Stripped partition per variable */
+	private Partition[] partitions;
+
+	/* Variables with one value in all solutions */
+	private boolean[] constant;
+
+	/* Minimal dependencies found so far */
+	private Vector <Implication> implications;
+
+	/* Finder of dependencies of up to some
+	 * variables determining another one
+	 */
+	public DependencyFinder(int max_arity)
+	{
+		if (max_arity < 1 || max_arity > arity_limit)
+			throw new IllegalArgumentException();
+		this.max_arity = max_arity;
+		columns = null;
+		rows = 0;
+		implications = new Vector <Implication> ();
+	}
+
+	/* Minimal dependencies found */
+	public Vector <Implication> implications()
+	{
+		return implications;
+	}
+
+	/* Check if a variable has one value in all solutions */
+	public boolean constant(int var)
+	{
+		return constant[var - 1];
+	}
+
+	/* Dependency found for a variable, null if none */
+	public Implication implication(int to)
+	{
+		for (Implication implication : implications)
+			if (implication.to == to)
+				return implication;
+		return null;
+	}
+
+	/* Follow the solutions and look for dependencies
+	 * Partitions are refined if the solutions are
+	 * the last ones seen after a filter and rebuilt
+	 * otherwise, the search stops at the deadline
+	 * keeping the dependencies found so far
+	 */
+	public Combinator.Status update(final SolutionColumns solutions, Deadline deadline, ForkJoinPool pool)
+	{
+		final int[] remap = columns == null ? null : remap(solutions);
+		variable_count = solutions.variables();
+		min_value = solutions.min_value;
+		if (remap == null) {
+			partitions = new Partition [variable_count];
+			implications = new Vector <Implication> ();
+		}
+		columns = solutions.columns.clone();
+		rows = solutions.rows;
+		Vector <Callable <Object>> tasks = new Vector <Callable <Object>> ();
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i) {
+			final int column = var_i;
+			tasks.add(new Callable <Object> () {
+				public Object call()
+				{
+					if (remap == null)
+						partitions[column] = partition(columns[column]);
+					else
+						partitions[column] = refine(partitions[column], remap);
+					return null;
+				}
+			});
+		}
+		Combinator.run(tasks, pool);
+		constant = new boolean [variable_count];
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i)
+			constant[var_i] = rows == 1 || (rows != 0 &&
+				partitions[var_i].classes() == 1 && partitions[var_i].rows.length == rows);
+		boolean complete = true;
+		for (int arity = 1 ; complete && arity <= max_arity && arity < variable_count ; ++arity)
+			complete = level(arity, deadline, pool);
+		minimize();
+		if (!complete)
+			return deadline.cancelled() ? Combinator.Status.CANCELLED : Combinator.Status.TIMEOUT;
+		return Combinator.Status.COMPLETE;
+	}
+
+	/* New position of each row of the last solutions
+	 * or -1 if removed, null if the solutions are not
+	 * the last ones with some rows removed
+	 * Filters keep the order so the rows left are
+	 * matched in one pass
+	 */
+	private int[] remap(SolutionColumns solutions)
+	{
+		if (solutions.variables() != variable_count || solutions.min_value != min_value ||
+		    solutions.rows > rows)
+			return null;
+		char[][] next = solutions.columns;
+		int[] remap = new int [rows];
+		int j = 0;
+		next_row:
+		for (int row = 0 ; row != rows ; ++row) {
+			remap[row] = -1;
+			if (j == solutions.rows)
+				continue;
+			for (int var_i = 0 ; var_i != variable_count ; ++var_i)
+				if (columns[var_i][row] != next[var_i][j])
+					continue next_row;
+			remap[row] = j++;
+		}
+		return j == solutions.rows ? remap : null;
+	}
+
+	/* Stripped partition of a column */
+	private Partition partition(char[] column)
+	{
+		int range = 0;
+		for (int row = 0 ; row != rows ; ++row)
+			if (column[row] >= range)
+				range = column[row] + 1;
+		int[] count = new int [range + 1];
+		for (int row = 0 ; row != rows ; ++row)
+			count[column[row] + 1]++;
+		int members = 0;
+		int classes = 0;
+		for (int off = 1 ; off <= range ; ++off)
+			if (count[off] > 1) {
+				members += count[off];
+				classes++;
+			}
+		/* Rows of each value with classes in value order */
+		int[] position = new int [range];
+		int[] start = new int [classes + 1];
+		for (int off = 0, pos = 0, c = 0 ; off != range ; ++off)
+			if (count[off + 1] > 1) {
+				position[off] = pos;
+				start[c++] = pos;
+				pos += count[off + 1];
+			} else
+				position[off] = -1;
+		start[classes] = members;
+		int[] class_rows = new int [members];
+		for (int row = 0 ; row != rows ; ++row)
+			if (position[column[row]] >= 0)
+				class_rows[position[column[row]]++] = row;
+		return new Partition(class_rows, start);
+	}
+
+	/* Drop removed rows from a partition and renumber
+	 * the rest, classes left with one row are stripped
+	 */
+	private static Partition refine(Partition partition, int[] remap)
+	{
+		int[] class_rows = new int [partition.rows.length];
+		int[] start = new int [partition.start.length];
+		int members = 0;
+		int classes = 0;
+		for (int c = 0 ; c != partition.classes() ; ++c) {
+			int first = members;
+			for (int i = partition.start[c] ; i != partition.start[c + 1] ; ++i)
+				if (remap[partition.rows[i]] >= 0)
+					class_rows[members++] = remap[partition.rows[i]];
+			if (members - first < 2)
+				members = first;
+			else
+				start[classes++] = first;
+		}
+		start[classes] = members;
+		return new Partition(Arrays.copyOf(class_rows, members), Arrays.copyOf(start, classes + 1));
+	}
+
+	/* Product of a partition with a column, rows of
+	 * each class grouped by their packed value and row
+	 */
+	private Partition product(Partition partition, char[] column)
+	{
+		int[] class_rows = new int [partition.rows.length];
+		int[] start = new int [partition.rows.length / 2 + 1];
+		int members = 0;
+		int classes = 0;
+		long[] packed = new long [0];
+		for (int c = 0 ; c != partition.classes() ; ++c) {
+			int size = partition.start[c + 1] - partition.start[c];
+			if (packed.length < size)
+				packed = new long [size];
+			for (int i = 0 ; i != size ; ++i) {
+				int row = partition.rows[partition.start[c] + i];
+				packed[i] = (long) column[row] << 32 | row;
+			}
+			Arrays.sort(packed, 0, size);
+			for (int i = 0 ; i != size ; ) {
+				int j = i + 1;
+				while (j != size && packed[j] >>> 32 == packed[i] >>> 32)
+					j++;
+				if (j - i > 1) {
+					start[classes++] = members;
+					for (; i != j ; ++i)
+						class_rows[members++] = (int) packed[i];
+				}
+				i = j;
+			}
+		}
+		start[classes] = members;
+		return new Partition(Arrays.copyOf(class_rows, members), Arrays.copyOf(start, classes + 1));
+	}
+
+	/* Check if every class has one value of a column */
+	private static boolean determines(Partition partition, char[] column)
+	{
+		for (int c = 0 ; c != partition.classes() ; ++c) {
+			char value = column[partition.rows[partition.start[c]]];
+			for (int i = partition.start[c] + 1 ; i != partition.start[c + 1] ; ++i)
+				if (column[partition.rows[i]] != value)
+					return false;
+		}
+		return true;
+	}
+
+	/* Packed values of some variables in a row */
+	private long key(int[] vars, int row)
+	{
+		long key = 0;
+		for (int i = 0 ; i != vars.length ; ++i)
+			key = key << 16 | columns[vars[i] - 1][row];
+		return key;
+	}
+
+	/* Check all sets of some variables in parallel
+	 * per first variable, false if cut short
+	 */
+	private boolean level(final int arity, final Deadline deadline, ForkJoinPool pool)
+	{
+		/* Dependencies found per variable determined */
+		final Vector <Vector <int[]>> known = new Vector <Vector <int[]>> ();
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i)
+			known.add(new Vector <int[]> ());
+		for (Implication implication : implications)
+			known.get(implication.to - 1).add(implication.from);
+		final Vector <Vector <Implication>> found = new Vector <Vector <Implication>> ();
+		final boolean[] cut_short = new boolean [1];
+		Vector <Callable <Object>> tasks = new Vector <Callable <Object>> ();
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i) {
+			if (constant[var_i])
+				continue;
+			final int first = var_i;
+			final Vector <Implication> task_found = new Vector <Implication> ();
+			found.add(task_found);
+			tasks.add(new Callable <Object> () {
+				public Object call()
+				{
+					int[] set = new int [arity];
+					set[0] = first + 1;
+					if (!sets(set, 1, partitions[first], known, task_found, deadline))
+						cut_short[0] = true;
+					return null;
+				}
+			});
+		}
+		Combinator.run(tasks, pool);
+		for (Vector <Implication> task_found : found)
+			implications.addAll(task_found);
+		return !cut_short[0];
+	}
+
+	/* Extend a set of variables in increasing order
+	 * with the partition of its first variables and
+	 * check it against every candidate once complete
+	 */
+	private boolean sets(int[] set, int size, Partition partition,
+	                     Vector <Vector <int[]>> known, Vector <Implication> found, Deadline deadline)
+	{
+		if (size == set.length) {
+			if (deadline.expired())
+				return false;
+			for (int to = 1 ; to <= variable_count ; ++to) {
+				if (constant[to - 1] || contains(set, size, to) || implied(known.get(to - 1), set))
+					continue;
+				if (determines(partition, columns[to - 1]))
+					found.add(new Implication(set.clone(), to));
+			}
+			return true;
+		}
+		/* Supersets of a key are never minimal */
+		if (partition.classes() == 0)
+			return true;
+		for (int var = set[size - 1] + 1 ; var <= variable_count ; ++var) {
+			if (constant[var - 1])
+				continue;
+			set[size] = var;
+			if (!sets(set, size + 1, product(partition, columns[var - 1]), known, found, deadline))
+				return false;
+		}
+		return true;
+	}
+
+	/* Check if a sorted set holds a variable */
+	private static boolean contains(int[] set, int size, int var)
+	{
+		for (int i = 0 ; i != size ; ++i)
+			if (set[i] == var)
+				return true;
+		return false;
+	}
+
+	/* Check if a subset of a set is already known to
+	 * determine the variable, so it is not minimal
+	 */
+	private static boolean implied(Vector <int[]> known, int[] set)
+	{
+		next_from:
+		for (int[] from : known) {
+			for (int i = 0 ; i != from.length ; ++i)
+				if (!contains(set, set.length, from[i]))
+					continue next_from;
+			return true;
+		}
+		return false;
+	}
+
+	/* Drop dependencies a smaller one found after
+	 * some solutions were removed makes redundant
+	 * and those of variables that became constant
+	 */
+	private void minimize()
+	{
+		Vector <Implication> minimal = new Vector <Implication> ();
+		next_implication:
+		for (Implication implication : implications) {
+			if (constant[implication.to - 1])
+				continue;
+			for (Implication other : implications)
+				if (other.to == implication.to && other.from.length < implication.from.length &&
+				    implied(other, implication.from))
+					continue next_implication;
+			minimal.add(implication);
+		}
+		implications = minimal;
+	}
+
+	/* Check if the variables of a dependency are in a set */
+	private static boolean implied(Implication implication, int[] set)
+	{
+		for (int i = 0 ; i != implication.from.length ; ++i)
+			if (!contains(set, set.length, implication.from[i]))
+				return false;
+		return true;
+	}
+
+	/* Check a dependency of any variables directly
+	 * Returns it if it holds else null
+	 */
+	public Implication check(int to, int ... from)
+	{
+		int[] set = from.clone();
+		Arrays.sort(set);
+		if (set.length == 0)
+			return constant[to - 1] ? new Implication(set, to) : null;
+		if (set.length > arity_limit)
+			throw new IllegalArgumentException();
+		Partition partition = partitions[set[0] - 1];
+		for (int i = 1 ; i != set.length ; ++i)
+			partition = product(partition, columns[set[i] - 1]);
+		return determines(partition, columns[to - 1]) ? new Implication(set, to) : null;
+	}
+}
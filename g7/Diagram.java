@@ -0,0 +1,421 @@
+package mapthatset.g7;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+import java.util.Vector;
+
+/* Reduced multi valued decision diagram of a solution set
+ * One layer per variable in a fixed order, each node has
+ * one edge per value leading to a node of the next layer
+ * and every path from the root to the terminal is one
+ * solution, nodes with the same edges are merged so
+ * repetitive sets take much less than their solutions
+ * Never changed after it is built, applying a constraint
+ * gives a new diagram
+ * Counts saturate at Long.MAX_VALUE
+ */
+public class Diagram {
+
+	/* Number of variables */
+	private final int variable_count;
+
+	/* Minimum value */
+	private final int min_value;
+
+	/* Maximum value */
+	private final int max_value;
+
+	/* Zero based variable of each layer */
+	private final int[] order;
+
+	/* Layer of each zero based variable */
+	private final int[] layer_of;
+
+	/* Child per layer per node per value offset
+	 * -1 if no edge, last layer holds only the
+	 * terminal node that has no edges
+	 */
+	private final int[][][] edges;
+
+	/* Number of first constraints of the engine it holds */
+	int watermark;
+
+	/* Diagram of all assignments of some domains
+	 * over a variable order, a single chain
+	 * Domains and order are zero based
+	 */
+	Diagram(int min, int max, int[] order, int[][] domains)
+	{
+		this(min, max, order, chain(min, max, order, domains));
+	}
+
+	private Diagram(int min, int max, int[] order, int[][][] edges)
+	{
+		variable_count = order.length;
+		min_value = min;
+		max_value = max;
+		this.order = order;
+		layer_of = new int [variable_count];
+		for (int layer = 0 ; layer != variable_count ; ++layer)
+			layer_of[order[layer]] = layer;
+		this.edges = edges;
+		watermark = 0;
+	}
+
+	/* Edges of a chain allowing the domains */
+	private static int[][][] chain(int min, int max, int[] order, int[][] domains)
+	{
+		int[][][] edges = new int [order.length + 1][][];
+		for (int layer = 0 ; layer != order.length ; ++layer) {
+			edges[layer] = new int [1][max - min + 1];
+			Arrays.fill(edges[layer][0], -1);
+			int[] domain = domains[order[layer]];
+			for (int i = 0 ; i != domain.length ; ++i)
+				edges[layer][0][domain[i] - min] = 0;
+		}
+		edges[order.length] = new int [1][0];
+		return reduce(edges);
+	}
+
+	/* Number of variables */
+	public int variables()
+	{
+		return variable_count;
+	}
+
+	/* Number of nodes */
+	public int size()
+	{
+		int nodes = 0;
+		for (int layer = 0 ; layer != edges.length ; ++layer)
+			nodes += edges[layer].length;
+		return nodes;
+	}
+
+	/* Number of first constraints of the engine it holds */
+	public int watermark()
+	{
+		return watermark;
+	}
+
+	/* Apply a constraint that some variables take exactly
+	 * some values and give the diagram of the solutions
+	 * of both, variables are one based
+	 */
+	public Diagram apply(int[] vars, int[] vals)
+	{
+		int[] con_vars = new int [vars.length];
+		for (int i = 0 ; i != vars.length ; ++i) {
+			if (vars[i] <= 0 || vars[i] > variable_count)
+				throw new IllegalArgumentException();
+			con_vars[i] = vars[i] - 1;
+		}
+		long[] bits = new long [(max_value - min_value + 64) >> 6];
+		int values = 0;
+		for (int i = 0 ; i != vals.length ; ++i) {
+			if (vals[i] < min_value || vals[i] > max_value)
+				throw new IllegalArgumentException();
+			int bit = vals[i] - min_value;
+			if ((bits[bit >> 6] & (1l << bit)) == 0)
+				values++;
+			bits[bit >> 6] |= 1l << bit;
+		}
+		return apply(con_vars, bits, values);
+	}
+
+	/* Apply a constraint with zero based variables and
+	 * values as a bitset of offsets
+	 * Built top down with one node per node of this
+	 * diagram and values the constraint has covered
+	 * while some of its variables are still open
+	 */
+	Diagram apply(int[] con_vars, long[] value_bits, int values)
+	{
+		/* Constrained variables per layer and layers they span */
+		boolean[] constrained = new boolean [variable_count];
+		int first = variable_count;
+		int last = -1;
+		for (int i = 0 ; i != con_vars.length ; ++i) {
+			int layer = layer_of[con_vars[i]];
+			constrained[layer] = true;
+			if (layer < first)
+				first = layer;
+			if (layer > last)
+				last = layer;
+		}
+		/* Constrained variables after each layer */
+		int[] open = new int [variable_count + 1];
+		for (int layer = variable_count ; layer-- != 0 ; )
+			open[layer] = open[layer + 1] + (constrained[layer] ? 1 : 0);
+		int[][][] new_edges = new int [variable_count + 1][][];
+		Vector <State> states = new Vector <State> ();
+		states.add(new State(0, new long [0]));
+		if (edges[0].length == 0)
+			states.clear();
+		for (int layer = 0 ; layer != variable_count ; ++layer) {
+			HashMap <State, Integer> next_index = new HashMap <State, Integer> ();
+			Vector <State> next_states = new Vector <State> ();
+			new_edges[layer] = new int [states.size()][];
+			for (int node = 0 ; node != states.size() ; ++node) {
+				State state = states.get(node);
+				int[] old_edges = edges[layer][state.node];
+				int[] out = new int [old_edges.length];
+				Arrays.fill(out, -1);
+				for (int val_i = 0 ; val_i != old_edges.length ; ++val_i) {
+					if (old_edges[val_i] < 0)
+						continue;
+					long[] covered = state.covered;
+					if (constrained[layer]) {
+						if ((value_bits[val_i >> 6] & (1l << val_i)) == 0)
+							continue;
+						covered = layer == first ? new long [value_bits.length] :
+						                           Arrays.copyOf(covered, covered.length);
+						covered[val_i >> 6] |= 1l << val_i;
+						/* Not enough variables left to cover the rest */
+						int count = 0;
+						for (int i = 0 ; i != covered.length ; ++i)
+							count += Long.bitCount(covered[i]);
+						if (values - count > open[layer + 1])
+							continue;
+					}
+					if (layer == last)
+						covered = new long [0];
+					State child = new State(old_edges[val_i], covered);
+					Integer index = next_index.get(child);
+					if (index == null) {
+						index = next_states.size();
+						next_index.put(child, index);
+						next_states.add(child);
+					}
+					out[val_i] = index;
+				}
+				new_edges[layer][node] = out;
+			}
+			states = next_states;
+		}
+		new_edges[variable_count] = new int [states.size() == 0 ? 0 : 1][0];
+		return new Diagram(min_value, max_value, order, reduce(new_edges));
+	}
+
+	/* Node of a diagram being built, a node of the
+	 * old diagram and values covered by the constraint
+	 */
+	private static class State {
+
+		/* Node of the old diagram */
+		final int node;
+
+		/* Values covered, empty outside the constraint */
+		final long[] covered;
+
+		State(int node, long[] covered)
+		{
+			this.node = node;
+			this.covered = covered;
+		}
+
+		public int hashCode()
+		{
+			return node * 31 + Arrays.hashCode(covered);
+		}
+
+		public boolean equals(Object o)
+		{
+			State s = (State) o;
+			return node == s.node && Arrays.equals(covered, s.covered);
+		}
+	}
+
+	/* Edges of a node used to merge equal nodes */
+	private static class Key {
+
+		/* Children per value offset */
+		final int[] edges;
+
+		Key(int[] edges)
+		{
+			this.edges = edges;
+		}
+
+		public int hashCode()
+		{
+			return Arrays.hashCode(edges);
+		}
+
+		public boolean equals(Object o)
+		{
+			return Arrays.equals(edges, ((Key) o).edges);
+		}
+	}
+
+	/* Remove nodes with no path to the terminal and
+	 * merge nodes with the same edges bottom up
+	 */
+	private static int[][][] reduce(int[][][] edges)
+	{
+		int layers = edges.length - 1;
+		int[][][] reduced = new int [edges.length][][];
+		reduced[layers] = edges[layers];
+		int[] remap = new int [edges[layers].length];
+		for (int layer = layers ; layer-- != 0 ; ) {
+			HashMap <Key, Integer> index = new HashMap <Key, Integer> ();
+			Vector <int[]> nodes = new Vector <int[]> ();
+			int[] new_remap = new int [edges[layer].length];
+			for (int node = 0 ; node != edges[layer].length ; ++node) {
+				int[] out = new int [edges[layer][node].length];
+				boolean alive = false;
+				for (int val_i = 0 ; val_i != out.length ; ++val_i) {
+					int child = edges[layer][node][val_i];
+					out[val_i] = child < 0 ? -1 : remap[child];
+					if (out[val_i] >= 0)
+						alive = true;
+				}
+				if (!alive) {
+					new_remap[node] = -1;
+					continue;
+				}
+				Key key = new Key(out);
+				Integer same = index.get(key);
+				if (same == null) {
+					same = nodes.size();
+					index.put(key, same);
+					nodes.add(out);
+				}
+				new_remap[node] = same;
+			}
+			reduced[layer] = nodes.toArray(new int [nodes.size()][]);
+			remap = new_remap;
+		}
+		/* Nothing left so drop the terminal too */
+		if (reduced[0].length == 0)
+			for (int layer = 0 ; layer != reduced.length ; ++layer)
+				reduced[layer] = new int [0][];
+		return reduced;
+	}
+
+	/* Saturating sum of counts */
+	private static long add(long a, long b)
+	{
+		long sum = a + b;
+		return sum < 0 ? Long.MAX_VALUE : sum;
+	}
+
+	/* Saturating product of counts */
+	private static long multiply(long a, long b)
+	{
+		if (a == 0 || b == 0)
+			return 0;
+		return a > Long.MAX_VALUE / b ? Long.MAX_VALUE : a * b;
+	}
+
+	/* Number of paths from each node to the terminal */
+	private long[][] below()
+	{
+		long[][] below = new long [edges.length][];
+		below[variable_count] = new long [edges[variable_count].length];
+		Arrays.fill(below[variable_count], 1);
+		for (int layer = variable_count ; layer-- != 0 ; ) {
+			below[layer] = new long [edges[layer].length];
+			for (int node = 0 ; node != edges[layer].length ; ++node)
+				for (int child : edges[layer][node])
+					if (child >= 0)
+						below[layer][node] = add(below[layer][node], below[layer + 1][child]);
+		}
+		return below;
+	}
+
+	/* Number of solutions */
+	public long count()
+	{
+		if (edges[0].length == 0)
+			return 0;
+		return below()[0][0];
+	}
+
+	/* Number of solutions with each value per
+	 * zero based variable and value offset
+	 */
+	public long[][] marginals()
+	{
+		long[][] counts = new long [variable_count][max_value - min_value + 1];
+		if (edges[0].length == 0)
+			return counts;
+		long[][] below = below();
+		long[] above = {1};
+		for (int layer = 0 ; layer != variable_count ; ++layer) {
+			long[] next = new long [edges[layer + 1].length];
+			long[] var_counts = counts[order[layer]];
+			for (int node = 0 ; node != edges[layer].length ; ++node)
+				for (int val_i = 0 ; val_i != edges[layer][node].length ; ++val_i) {
+					int child = edges[layer][node][val_i];
+					if (child < 0)
+						continue;
+					long paths = multiply(above[node], below[layer + 1][child]);
+					var_counts[val_i] = add(var_counts[val_i], paths);
+					next[child] = add(next[child], above[node]);
+				}
+			above = next;
+		}
+		return counts;
+	}
+
+	/* Values a variable takes in some solution
+	 * Variable is one based like in the engine
+	 */
+	public int[] domain(int var)
+	{
+		int layer = layer_of[var - 1];
+		boolean[] used = new boolean [max_value - min_value + 1];
+		int values = 0;
+		for (int[] out : edges[layer])
+			for (int val_i = 0 ; val_i != out.length ; ++val_i)
+				if (out[val_i] >= 0 && !used[val_i]) {
+					used[val_i] = true;
+					values++;
+				}
+		int[] domain = new int [values];
+		for (int val_i = 0, i = 0 ; val_i != used.length ; ++val_i)
+			if (used[val_i])
+				domain[i++] = val_i + min_value;
+		return domain;
+	}
+
+	/* Values seen per zero based variable as bitsets */
+	long[][] seen()
+	{
+		long[][] seen = new long [variable_count][(max_value - min_value + 64) >> 6];
+		for (int layer = 0 ; layer != variable_count ; ++layer) {
+			long[] bits = seen[order[layer]];
+			for (int[] out : edges[layer])
+				for (int val_i = 0 ; val_i != out.length ; ++val_i)
+					if (out[val_i] >= 0)
+						bits[val_i >> 6] |= 1l << val_i;
+		}
+		return seen;
+	}
+
+	/* Uniformly random solution, null if none */
+	public int[] sample(SplittableRandom gen)
+	{
+		if (edges[0].length == 0)
+			return null;
+		long[][] below = below();
+		int[] solution = new int [variable_count];
+		int node = 0;
+		for (int layer = 0 ; layer != variable_count ; ++layer) {
+			int[] out = edges[layer][node];
+			long pick = gen.nextLong(below[layer][node]);
+			int val_i = 0;
+			for (;; ++val_i)
+				if (out[val_i] >= 0) {
+					pick -= below[layer + 1][out[val_i]];
+					if (pick < 0)
+						break;
+				}
+			solution[order[layer]] = val_i + min_value;
+			node = out[val_i];
+		}
+		return solution;
+	}
+}
@@ -0,0 +1,52 @@
+package mapthatset.g7;
+
+import java.util.SplittableRandom;
+
+/* Solver engine for the mapping problem
+ * Variables are numbered from one and each constraint
+ * says its variables take exactly its set of values
+ * Calls that search take a deadline as their budget
+ * and tell how they ended in the status of the result
+ */
+public interface Engine {
+
+	/* Number of variables */
+	int variables();
+
+	/* Add a new constraint */
+	void constraint(int[] vars, int[] vals);
+
+	/* Number of constraints so far */
+	int constraints();
+
+	/* Current domain of a variable */
+	int[] domain(int var);
+
+	/* Search for up to two solutions, the solution
+	 * is unique if COMPLETE with count equal to one
+	 */
+	Combinator.Result unique(Deadline deadline);
+
+	/* Count solutions, domains are left untouched */
+	Combinator.Result count(Deadline deadline);
+
+	/* Find all solutions and refine domains if complete */
+	Combinator.Result findall(Deadline deadline);
+
+	/* Refine domains to the values solutions take
+	 * An engine that refines without enumerating
+	 * returns Result.unknown_count as the count unless
+	 * there is no solution, so check the count only
+	 * after findall() or count()
+	 */
+	Combinator.Result refine(Deadline deadline);
+
+	/* Filter a superset of solutions known to satisfy
+	 * the constraints up to the watermark and refine
+	 * domains if complete, rows not checked are kept
+	 */
+	Combinator.Result filter(int[][] solutions_superset, int watermark, Deadline deadline);
+
+	/* One random solution, not necessarily uniform */
+	Combinator.Result sample(SplittableRandom generator, Deadline deadline);
+}
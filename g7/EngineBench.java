@@ -0,0 +1,358 @@
+package mapthatset.g7;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.SplittableRandom;
+import java.util.StringTokenizer;
+import java.util.Vector;
+
+/* Differential benchmark of engines
+ * Runs recorded constraint streams through several
+ * engines side by side, after every constraint calls
+ * count, unique, sample and refine on each within a
+ * budget and checks the complete answers agree with
+ * the first engine, then prints the time spent per
+ * engine and call
+ * Streams are text: the number of variables on a line,
+ * a line per constraint with its variables, a colon
+ * and its values, and an empty line after each stream
+ */
+public class EngineBench {
+
+	/* Makes an engine for a number of variables */
+	public static interface Factory {
+
+		Engine make(int variables);
+	}
+
+	/* Constraints of one mapping in the order given */
+	public static class Recording {
+
+		/* Number of variables */
+		public final int variables;
+
+		/* Variables and values per constraint */
+		public final Vector <int[][]> constraints;
+
+		public Recording(int variables)
+		{
+			this.variables = variables;
+			constraints = new Vector <int[][]> ();
+		}
+
+		/* Append a constraint */
+		public void add(int[] vars, int[] vals)
+		{
+			int[][] con = {vars.clone(), vals.clone()};
+			constraints.add(con);
+		}
+	}
+
+	/* Calls timed */
+	private static final String[] calls = {"count", "unique", "sample", "refine"};
+
+	/* Names of the engines */
+	private Vector <String> names;
+
+	/* Factories of the engines */
+	private Vector <Factory> factories;
+
+	/* Nanoseconds per engine and call */
+	private long[][] time;
+
+	/* Calls cut short per engine and call */
+	private int[][] expired;
+
+	/* Answers that disagree with the first engine */
+	private int mismatches;
+
+	/* Empty bench */
+	public EngineBench()
+	{
+		names = new Vector <String> ();
+		factories = new Vector <Factory> ();
+	}
+
+	/* Add an engine, the first is the reference */
+	public EngineBench add(String name, Factory factory)
+	{
+		names.add(name);
+		factories.add(factory);
+		return this;
+	}
+
+	/* Run streams giving each call some milliseconds
+	 * Returns the number of disagreements
+	 */
+	public int run(Vector <Recording> recordings, long millis)
+	{
+		int engine_count = factories.size();
+		time = new long [engine_count][calls.length];
+		expired = new int [engine_count][calls.length];
+		mismatches = 0;
+		SplittableRandom random = RunSeed.generator(EngineBench.class);
+		for (int rec = 0 ; rec != recordings.size() ; ++rec) {
+			Recording recording = recordings.get(rec);
+			Engine[] engines = new Engine [engine_count];
+			for (int e = 0 ; e != engine_count ; ++e)
+				engines[e] = factories.get(e).make(recording.variables);
+			for (int step = 0 ; step != recording.constraints.size() ; ++step) {
+				int[][] con = recording.constraints.get(step);
+				Combinator.Result[][] results = new Combinator.Result [engine_count][];
+				for (int e = 0 ; e != engine_count ; ++e) {
+					engines[e].constraint(con[0], con[1]);
+					results[e] = calls(engines[e], e, random.split(), millis);
+				}
+				String where = "stream " + rec + " step " + step + ": ";
+				for (int e = 1 ; e != engine_count ; ++e) {
+					compare(where + names.get(e), results[0], results[e]);
+					if (results[0][3].status == Combinator.Status.COMPLETE &&
+					    results[e][3].status == Combinator.Status.COMPLETE)
+						for (int var = 1 ; var <= recording.variables ; ++var) {
+							int[] a = engines[0].domain(var);
+							int[] b = engines[e].domain(var);
+							Arrays.sort(a);
+							Arrays.sort(b);
+							if (!Arrays.equals(a, b))
+								mismatch(where + names.get(e) + " domain of " + var);
+						}
+				}
+				for (int e = 0 ; e != engine_count ; ++e)
+					if (results[e][2].status == Combinator.Status.COMPLETE &&
+					    !satisfies(recording, step + 1, results[e][2].solutions[0]))
+						mismatch(where + names.get(e) + " sample is no solution");
+			}
+		}
+		return mismatches;
+	}
+
+	/* Make the calls on one engine and time them */
+	private Combinator.Result[] calls(Engine engine, int e, SplittableRandom random, long millis)
+	{
+		Combinator.Result[] results = new Combinator.Result [calls.length];
+		for (int c = 0 ; c != calls.length ; ++c) {
+			Deadline deadline = Deadline.after(millis);
+			long start = System.nanoTime();
+			switch (c) {
+				case 0: results[c] = engine.count(deadline); break;
+				case 1: results[c] = engine.unique(deadline); break;
+				case 2: results[c] = engine.sample(random, deadline); break;
+				default: results[c] = engine.refine(deadline);
+			}
+			time[e][c] += System.nanoTime() - start;
+			if (!results[c].complete())
+				expired[e][c]++;
+		}
+		return results;
+	}
+
+	/* Compare answers both engines completed */
+	private void compare(String where, Combinator.Result[] reference, Combinator.Result[] results)
+	{
+		for (int c = 0 ; c != 2 ; ++c)
+			if (reference[c].complete() && results[c].complete() &&
+			    (reference[c].status != results[c].status || reference[c].count != results[c].count))
+				mismatch(where + " " + calls[c] + " " + results[c].status + " " + results[c].count +
+				         " instead of " + reference[c].status + " " + reference[c].count);
+	}
+
+	private void mismatch(String message)
+	{
+		mismatches++;
+		System.out.println("Mismatch " + message);
+	}
+
+	/* Check a solution against the first constraints */
+	private static boolean satisfies(Recording recording, int steps, int[] solution)
+	{
+		for (int step = 0 ; step != steps ; ++step) {
+			int[][] con = recording.constraints.get(step);
+			HashSet <Integer> vals = new HashSet <Integer> ();
+			for (int i = 0 ; i != con[1].length ; ++i)
+				vals.add(con[1][i]);
+			HashSet <Integer> taken = new HashSet <Integer> ();
+			for (int i = 0 ; i != con[0].length ; ++i)
+				taken.add(solution[con[0][i] - 1]);
+			if (!vals.equals(taken))
+				return false;
+		}
+		return true;
+	}
+
+	/* Print the time per engine and call */
+	public void report()
+	{
+		System.out.print("Engine      ");
+		for (int c = 0 ; c != calls.length ; ++c)
+			System.out.print(String.format("%14s", calls[c] + " ms"));
+		System.out.println();
+		for (int e = 0 ; e != names.size() ; ++e) {
+			System.out.print(String.format("%-12s", names.get(e)));
+			for (int c = 0 ; c != calls.length ; ++c)
+				System.out.print(String.format("%14s", time[e][c] / 1000000 +
+				                 (expired[e][c] == 0 ? "" : " (" + expired[e][c] + "x)")));
+			System.out.println();
+		}
+		System.out.println("Mismatches: " + mismatches);
+	}
+
+	/* Random mapping of some variables queried first
+	 * as a whole and then in random groups
+	 */
+	public static Recording generate(int size, int queries, SplittableRandom random)
+	{
+		int[] mapping = new int [size];
+		for (int i = 0 ; i != size ; ++i)
+			mapping[i] = random.nextInt(size) + 1;
+		Recording recording = new Recording(size);
+		int group = (int) Math.ceil(Math.sqrt(size));
+		for (int q = 0 ; q != queries ; ++q) {
+			HashSet <Integer> vars = new HashSet <Integer> ();
+			HashSet <Integer> vals = new HashSet <Integer> ();
+			while (vars.size() != (q == 0 ? size : group))
+				vars.add(random.nextInt(size) + 1);
+			for (int var : vars)
+				vals.add(mapping[var - 1]);
+			recording.add(toArray(vars), toArray(vals));
+		}
+		return recording;
+	}
+
+	/* Read streams from a file */
+	public static Vector <Recording> read(File file) throws IOException
+	{
+		Vector <Recording> recordings = new Vector <Recording> ();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			Recording recording = null;
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0)
+					recording = null;
+				else if (recording == null) {
+					recording = new Recording(Integer.parseInt(line));
+					recordings.add(recording);
+				} else {
+					int colon = line.indexOf(':');
+					if (colon < 0)
+						throw new IOException("Missing colon: " + line);
+					recording.add(parse(line.substring(0, colon)), parse(line.substring(colon + 1)));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return recordings;
+	}
+
+	/* Write streams to a file */
+	public static void write(File file, Vector <Recording> recordings) throws IOException
+	{
+		PrintWriter out = new PrintWriter(file);
+		try {
+			for (Recording recording : recordings) {
+				out.println(recording.variables);
+				for (int[][] con : recording.constraints)
+					out.println(format(con[0]) + " : " + format(con[1]));
+				out.println();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static int[] parse(String s)
+	{
+		StringTokenizer tokens = new StringTokenizer(s);
+		int[] a = new int [tokens.countTokens()];
+		for (int i = 0 ; i != a.length ; ++i)
+			a[i] = Integer.parseInt(tokens.nextToken());
+		return a;
+	}
+
+	private static String format(int[] a)
+	{
+		StringBuffer buf = new StringBuffer();
+		for (int i = 0 ; i != a.length ; ++i) {
+			if (i != 0)
+				buf.append(' ');
+			buf.append(a[i]);
+		}
+		return buf.toString();
+	}
+
+	private static int[] toArray(HashSet <Integer> s)
+	{
+		int[] r = new int [s.size()];
+		int i = 0;
+		for (int n : s)
+			r[i++] = n;
+		return r;
+	}
+
+	/* Compare the search engine with the SAT backend
+	 * Options: -replay <file> runs recorded streams,
+	 * else -streams, -size and -queries generate them
+	 * and -record <file> saves them, -millis is the
+	 * budget of each call
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		int streams = 10;
+		int size = 16;
+		int queries = 8;
+		long millis = 1000;
+		File replay = null;
+		File record = null;
+		for (int i = 0 ; i + 1 < args.length ; i += 2) {
+			if (args[i].equals("-streams"))
+				streams = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-size"))
+				size = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-queries"))
+				queries = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-millis"))
+				millis = Long.parseLong(args[i + 1]);
+			else if (args[i].equals("-replay"))
+				replay = new File(args[i + 1]);
+			else if (args[i].equals("-record"))
+				record = new File(args[i + 1]);
+			else
+				throw new IllegalArgumentException(args[i]);
+		}
+		Vector <Recording> recordings;
+		if (replay != null)
+			recordings = read(replay);
+		else {
+			SplittableRandom random = RunSeed.generator("EngineBench.main");
+			recordings = new Vector <Recording> ();
+			for (int s = 0 ; s != streams ; ++s)
+				recordings.add(generate(size, queries, random));
+		}
+		if (record != null)
+			write(record, recordings);
+		EngineBench bench = new EngineBench();
+		bench.add("combinator", new Factory() {
+			public Engine make(int variables)
+			{
+				return new Combinator(variables);
+			}
+		});
+		bench.add("sat", new Factory() {
+			public Engine make(int variables)
+			{
+				return new SatEngine(variables);
+			}
+		});
+		int mismatches = bench.run(recordings, millis);
+		bench.report();
+		if (mismatches != 0)
+			System.exit(1);
+	}
+}
@@ -1,11 +1,16 @@
 package mapthatset.g7;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.Random;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import mapthatset.sim.Guesser;
 import mapthatset.sim.GuesserAction;
@@ -29,8 +34,10 @@ public class G7Guesser extends Guesser {
 	/* Last query issued */
 	private ArrayList <Integer> query;
 
-	/* Random generator */
-	private static final Random random = new Random();
+	/* Random generator of the guesser
+	 * Seeds the engine of every mapping
+	 */
+	private final SplittableRandom random = RunSeed.generator(G7Guesser.class);
 
 	/* History of queries and answers */
 	private Vector <Pair <ArrayList <Integer>, ArrayList <Integer>>> history;
@@ -58,10 +65,15 @@ public class G7Guesser extends Guesser {
 	/* Variables have been combined in a query
 	 * First query does not count
 	 */
-	private HashSet <Pair <Integer, Integer>> combined;
+	private PairMatrix combined;
+
+	/* All solutions stored by column */
+	private SolutionColumns solutions;
 
-	/* All solutions */
-	private int[][] solutions;
+	/* Enumeration of all solutions carried
+	 * across turns until it finishes
+	 */
+	private Combinator.Enumeration enumeration;
 
 	/* Dividing of variables */
 	private int[] dividing;
@@ -69,53 +81,331 @@ public class G7Guesser extends Guesser {
 	/* Phase in dividing */
 	private int dividing_pos;
 
+	/* Bits of the domain product of a group at most */
+	private static final double group_cost_bits = 24;
+
+	/* Plans queries ahead once all solutions are known */
+	private QueryPlanner planner;
+
+	/* Last query came from the planner */
+	private boolean planned;
+
+	/* Answers speculated per query at most */
+	private static final int max_speculations = 3;
+
+	/* Solutions drawn to guess the answers */
+	private static final int speculation_samples = 64;
+
+	/* Part of the draws an answer needs to be worth it */
+	private static final double speculation_share = 0.2;
+
+	/* Part of the guesses that must hit for the work
+	 * ahead to run
+	 */
+	private static final double min_hit_rate = 0.5;
+
+	/* Answers guessed for the pending query */
+	private Vector <int[]> likely;
+
+	/* Queries whose answers were guessed and those
+	 * whose answer was one of them, over all games
+	 */
+	private int guessed;
+	private int hits;
+
+	/* Work done ahead for the likely answers
+	 * of the query waiting for its answer
+	 */
+	private Vector <Speculation> speculations;
+
+	/* Next query planned by the speculation kept */
+	private QueryPlanner.Plan next_plan;
+
+	/* Time of the turns, what it learns of the
+	 * phases carries over from game to game
+	 */
+	private final TurnBudget budget = new TurnBudget();
+
+	/* Work on the pending query done ahead in the
+	 * background for one of its likely answers: the
+	 * known solutions giving that answer are the
+	 * solutions after it and the next query is
+	 * planned on them
+	 */
+	private class Speculation implements Callable <Object> {
+
+		/* Answer assumed, values in increasing order */
+		final int[] answer;
+
+		/* Variables of the query */
+		final int[] vars;
+
+		/* Solutions known before the answer */
+		final SolutionColumns known;
+
+		/* Constraints after the answer */
+		final int watermark;
+
+		/* Range of the values */
+		final int range;
+
+		/* Planner of its own */
+		final QueryPlanner planner;
+
+		/* Turn of the work, cancelled when the answer comes */
+		final Deadline deadline;
+
+		/* Solutions after the answer */
+		SolutionColumns found;
+
+		/* Next query planned on them */
+		QueryPlanner.Plan plan;
+
+		/* Work running in the background */
+		Future <Object> future;
+
+		Speculation(int[] answer, int[] vars, SolutionColumns known, int watermark, int range,
+		            QueryPlanner planner, long millis)
+		{
+			this.answer = answer;
+			this.vars = vars;
+			this.known = known;
+			this.watermark = watermark;
+			this.range = range;
+			this.planner = planner;
+			deadline = Deadline.after(millis);
+		}
+
+		public Object call()
+		{
+			/* Rows whose values on the query are the answer,
+			 * slot of each value in it as in the filter
+			 */
+			int min = known.min_value;
+			int[] slot = new int [range];
+			Arrays.fill(slot, -1);
+			for (int i = 0 ; i != answer.length ; ++i)
+				slot[answer[i] - min] = i;
+			long full = answer.length == 64 ? -1l : (1l << answer.length) - 1;
+			int[] kept = new int [known.rows];
+			int kept_count = 0;
+			for (int row = 0 ; row != known.rows ; ++row) {
+				if ((row & 1023) == 0 && deadline.expired())
+					return null;
+				long mask = 0;
+				int i = 0;
+				for (; i != vars.length ; ++i) {
+					int s = slot[known.columns[vars[i] - 1][row]];
+					if (s < 0)
+						break;
+					mask |= 1l << s;
+				}
+				if (i == vars.length && mask == full)
+					kept[kept_count++] = row;
+			}
+			found = known.select(kept, kept_count, watermark);
+			/* A plan cut short by the answer is dropped,
+			 * not even started once the answer came so
+			 * waiting for the speculation stays short
+			 */
+			if (found.size() > 1 && !deadline.cancelled())
+				plan = planner.plan(found, deadline, null);
+			if (deadline.cancelled())
+				plan = null;
+			return null;
+		}
+
+		/* Wait for the work to stop */
+		void join()
+		{
+			try {
+				future.get();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
 	public void startNewMapping(int len)
 	{
 		variable_count = len;
 		value_count = 0;
 		solutions = null;
+		enumeration = null;
 		if (variable_count == 1) {
 			int[][] one = {{1}};
-			solutions = one;
+			solutions = new SolutionColumns(one, 1, 1, 1, 0);
 		}
 		csp_engine = new Combinator(len);
+		csp_engine.seed(random.nextLong());
+		/* Unary domain variables leave the pool
+		 * as soon as the engine fixes them
+		 */
+		csp_engine.addListener(new Combinator.ListenerAdapter() {
+			public void fixed(int var, int value)
+			{
+				active.remove(var);
+			}
+		});
 		dep_engine = new Dependency(csp_engine);
 		active = new HashSet <Integer> ();
 		unused = new LinkedList <Integer> ();
 		for (int i = 1 ; i <= variable_count ; ++i) {
-			active.add(i);
+			if (csp_engine.view(i).size() != 1)
+				active.add(i);
 			unused.add(i);
 		}
-		combined = new HashSet <Pair <Integer, Integer>> ();
+		combined = new PairMatrix(variable_count);
 		history = new Vector <Pair <ArrayList <Integer>, ArrayList <Integer>>> ();
 		query = new ArrayList <Integer> ();
 		dividing = new int [1];
 		dividing[0] = variable_count;
 		dividing_pos = 0;
+		planner = new QueryPlanner();
+		planned = false;
+		cancelSpeculations(null);
+		speculations = new Vector <Speculation> ();
+		likely = new Vector <int[]> ();
+		next_plan = null;
+		budget.startGame();
 	}
 
 	public GuesserAction nextAction()
 	{
-		if (guess)
-			return new GuesserAction("g", query);
+		budget.startTurn();
+		GuesserAction action = guess ? new GuesserAction("g", query) : queryAction();
+		budget.endTurn();
+		return action;
+	}
+
+	/* Next query, from the planner if the turn affords
+	 * it else by rotation over the unused variables
+	 */
+	private GuesserAction queryAction()
+	{
 		query.clear();
+		/* Look ahead over the solutions when known */
+		planned = false;
+		QueryPlanner.Plan plan = next_plan;
+		next_plan = null;
+		if (plan == null && solutions != null && solutions.size() > 1 &&
+		    budget.affords(TurnBudget.Phase.PLAN)) {
+			Deadline planning = budget.start(TurnBudget.Phase.PLAN);
+			plan = planner.plan(solutions, planning, pool());
+			budget.done(TurnBudget.Phase.PLAN);
+		}
+		if (plan != null) {
+			for (int var : plan.query)
+				query.add(var);
+			planned = true;
+			speculate();
+			return new GuesserAction("q", query);
+		}
 		int size = dividing[dividing_pos++];
-		while (query.size() != size) {
+		/* Stop when a whole pass over unused conflicts */
+		PairMatrix.Group group = combined.group();
+		int conflicts = 0;
+		while (query.size() != size && conflicts != unused.size()) {
 			int var = unused.removeFirst();
-			boolean conflict = false;
-			for (int svar : query)
-				if (combined.contains(new Pair <Integer, Integer> (var, svar))) {
-					conflict = true;
-					break;
-				}
-			if (conflict)
+			if (!group.fits(var)) {
 				unused.addLast(var);
-			else
+				conflicts++;
+			} else {
 				query.add(var);
+				group.add(var);
+				conflicts = 0;
+			}
 		}
 		return new GuesserAction("q", query);
 	}
 
+	/* Guess the answers the planned query most likely
+	 * gets from a sample of the solutions, if they are
+	 * all known and checked against all constraints,
+	 * and work on them in the background if the pool
+	 * has workers to spare and the guesses of earlier
+	 * queries hit often enough
+	 */
+	private void speculate()
+	{
+		likely.clear();
+		int constraints = csp_engine.constraints();
+		if (query.size() == 0 || query.size() > 64 ||
+		    solutions == null || solutions.watermark() != constraints)
+			return;
+		Vector <int[]> hidden = new Vector <int[]> ();
+		for (int s = 0 ; s != speculation_samples ; ++s)
+			hidden.add(solutions.solution(random.nextInt(solutions.size())));
+		/* Count the answers they give */
+		Vector <int[]> answers = new Vector <int[]> ();
+		Vector <Integer> counts = new Vector <Integer> ();
+		for (int[] mapping : hidden) {
+			int[] answer = answer(mapping);
+			int pos = 0;
+			while (pos != answers.size() && !Arrays.equals(answers.get(pos), answer))
+				pos++;
+			if (pos == answers.size()) {
+				answers.add(answer);
+				counts.add(0);
+			}
+			counts.set(pos, counts.get(pos) + 1);
+		}
+		/* Keep the most frequent */
+		while (likely.size() != max_speculations && answers.size() != 0) {
+			int best = 0;
+			for (int pos = 1 ; pos != answers.size() ; ++pos)
+				if (counts.get(pos) > counts.get(best))
+					best = pos;
+			if (counts.get(best) < speculation_share * hidden.size())
+				break;
+			likely.add(answers.get(best));
+			answers.remove(best);
+			counts.remove(best);
+		}
+		ForkJoinPool pool = pool();
+		if (pool == null || hits < min_hit_rate * guessed)
+			return;
+		int[] vars = toArray(query);
+		for (int[] answer : likely)
+			speculations.add(new Speculation(answer, vars, solutions, constraints + 1,
+			                                 csp_engine.maxValue() - csp_engine.minValue() + 1,
+			                                 new QueryPlanner(random.split()),
+			                                 Math.max(budget.expected(TurnBudget.Phase.PLAN), 1)));
+		/* Start them once all are made */
+		for (Speculation speculation : speculations)
+			speculation.future = pool.submit(speculation);
+	}
+
+	/* Values the query takes in a mapping, in order */
+	private int[] answer(int[] mapping)
+	{
+		HashSet <Integer> values = new HashSet <Integer> ();
+		for (int var : query)
+			values.add(mapping[var - 1]);
+		int[] answer = toArray(values);
+		Arrays.sort(answer);
+		return answer;
+	}
+
+	/* Stop the speculations once the answer came
+	 * and return the one on this answer if any
+	 */
+	private Speculation cancelSpeculations(int[] answer)
+	{
+		if (speculations == null)
+			return null;
+		Speculation kept = null;
+		for (Speculation speculation : speculations) {
+			if (answer != null && Arrays.equals(speculation.answer, answer))
+				kept = speculation;
+			speculation.deadline.cancel();
+		}
+		for (Speculation speculation : speculations)
+			speculation.join();
+		speculations.clear();
+		return kept;
+	}
+
 	public void setResult(ArrayList <Integer> result)
 	{
 		/* Ignore guess results */
@@ -123,25 +413,43 @@ public class G7Guesser extends Guesser {
 			guess = false;
 			return;
 		}
+		budget.startTurn();
+		/* Keep the work done ahead for this answer
+		 * and count if it was guessed
+		 */
+		int[] values = toArray(result);
+		Arrays.sort(values);
+		if (likely.size() != 0) {
+			guessed++;
+			for (int[] answer : likely)
+				if (Arrays.equals(answer, values))
+					hits++;
+			likely.clear();
+		}
+		Speculation speculation = cancelSpeculations(values);
 		/* Update history */
-		history.add(new Pair <ArrayList <Integer>, ArrayList <Integer>> (query, result));
+		history.add(new Pair <ArrayList <Integer>, ArrayList <Integer>> (new ArrayList <Integer> (query), result));
 		/* Add constraint to the engine */
 		csp_engine.constraint(toArray(query), toArray(result));
-		/* Check bypassing of last part query */
-		if (dividing_pos + 1 == dividing.length && dividing_pos != 0) {
-			/* All variables of previous groups */
+		/* Check bypassing of last part query
+		 * Sound only once the first query, over all
+		 * the variables, gave the image of the mapping
+		 */
+		if (!planned && value_count != 0 && dividing_pos + 1 == dividing.length && dividing_pos != 0) {
+			/* All variables outside the last group */
 			HashSet <Integer> restVars = new HashSet <Integer> ();
-			int h = history.size() - 1 - dividing_pos;
-			for (; h != history.size() ; ++h)
-				restVars.addAll(history.get(h).fst);
-			/* Get values of first groups */
+			for (int i = 1 ; i <= variable_count ; ++i)
+				restVars.add(i);
+			restVars.removeAll(unused);
+			/* Get values the rest can take */
 			HashSet <Integer> restVals = allDomains(restVars);
-			/* Get values of last group */
+			/* Values only the last group can take
+			 * and must as every value is in the image
+			 */
 			HashSet <Integer> remVals = allDomains(unused);
-			/* All values */
-			HashSet <Integer> allVals = addSets(restVals, remVals);
-			/* If unused values are equal to the number of remaining */
-			if (allVals.size() - restVals.size() == unused.size()) {
+			remVals.removeAll(restVals);
+			/* If they are as many as the remaining */
+			if (remVals.size() == unused.size()) {
 				/* Constraint remaining variables
 				 * to take remaining unused values
 				 */
@@ -154,53 +462,62 @@ public class G7Guesser extends Guesser {
 			value_count = result.size();
 		else
 			/* Check combinations */
-			for (int var_i : query)
-				for (int var_j : query)
-					if (var_i != var_j) {
-						combined.add(new Pair<Integer, Integer> (var_i, var_j));
-						combined.add(new Pair<Integer, Integer> (var_j, var_i));
-					}
-		/* Try to find all solutions */
-		csp_engine.timeoutLimit(100);
-		/* If not found */
-		if (solutions == null)
-			/* Start from scratch */
-			solutions = csp_engine.findall();
-		else
-			/* Filter already known solutions */
-			solutions = csp_engine.filter(solutions);
+			combined.addAll(query);
+		/* Try to find all solutions within the turn */
+		Deadline turn = budget.start(TurnBudget.Phase.SOLVE);
+		ForkJoinPool pool = pool();
+		/* Take the solutions found ahead, filtering
+		 * them again only refines the domains
+		 */
+		if (speculation != null && speculation.found != null) {
+			solutions = speculation.found;
+			next_plan = speculation.plan;
+			csp_engine.filter(solutions, turn, pool);
+		} else if (solutions == null) {
+			/* Not found, continue where the last turn stopped */
+			if (enumeration == null)
+				enumeration = csp_engine.enumeration();
+			Combinator.Result found = enumeration.resume(turn, pool);
+			if (found.status == Combinator.Status.UNSATISFIABLE)
+				throw new NoSuchElementException();
+			if (found.status == Combinator.Status.COMPLETE) {
+				solutions = csp_engine.columns(found);
+				enumeration = null;
+			}
+		} else
+			/* Filter already known solutions by new constraints
+			 * If cut short it is still a superset
+			 */
+			csp_engine.filter(solutions, turn, pool);
+		budget.done(TurnBudget.Phase.SOLVE);
+		/* Follow the solutions for dependencies, if
+		 * skipped those found on more rows still hold
+		 */
+		if (solutions != null && budget.affords(TurnBudget.Phase.DEPENDENCY)) {
+			Deadline analysis = budget.start(TurnBudget.Phase.DEPENDENCY);
+			dep_engine.update(solutions, analysis, pool);
+			budget.done(TurnBudget.Phase.DEPENDENCY);
+		}
 		/* Check if problem can be solved */
 		int[] solution = dep_engine.solve();
 		/* Set unique solution for next guess */
 		if (solution != null) {
-			solutions = new int [1][];
-			solutions[0] = solution;
 			query.clear();
-			for (int i = 0 ; i != solutions[0].length ; ++i)
-				query.add(solutions[0][i]);
+			for (int i = 0 ; i != solution.length ; ++i)
+				query.add(solution[i]);
 			guess = true;
 			return;
 		}
-		/* Remove unary domain variables from the pool */
-		boolean last;
-		do {
-			last = true;
-			for (int var : active)
-				if (csp_engine.domain(var).length == 1) {
-					last = false;
-					active.remove(var);
-					break;
-				}
-		} while (!last);
 		/* Remove dependencies from the pool */
 		//TODO remove dependencies
-		/* Check if end of round and restart */
+		/* Check if end of round and restart, the
+		 * engine propagates first so its listener
+		 * is done with the active variables before
+		 * the domains are read over them
+		 */
 		if (dividing_pos == dividing.length) {
-			HashSet <Integer> active_vals = allDomains(active);
-			int groups = 2;
-			//TODO figure out groups based on active variables
-			//     and active values
-			dividing = divide(active.size(), groups);
+			csp_engine.propagate();
+			dividing = divide(active.size(), groups());
 			dividing_pos = 0;
 			unused.clear();
 			/* Reset the unused variables */
@@ -209,13 +526,55 @@ public class G7Guesser extends Guesser {
 		}
 	}
 
+	/* Number of groups of the next round
+	 * A group of k variables over v candidate values
+	 * shows a repeated value with probability about
+	 * 1 - exp(-k(k-1)/2v), and an answer tells most when
+	 * that is even, so k is near sqrt(2v ln 2)
+	 * The search over a group grows with the product
+	 * of the domains so k stays within a cost in bits,
+	 * and the denser the pairs already combined the
+	 * fewer variables fit together in one group
+	 */
+	private int groups()
+	{
+		int active_count = active.size();
+		if (active_count <= 1)
+			return 1;
+		int value_range = allDomains(active).size();
+		double domain_bits = 0;
+		for (int var : active)
+			domain_bits += Math.log(csp_engine.view(var).size()) / Math.log(2);
+		domain_bits /= active_count;
+		long pairs = combined.pairs(active);
+		double density = pairs / (active_count * (active_count - 1) / 2.0);
+		double size = Math.sqrt(2 * value_range * Math.log(2));
+		size = Math.min(size, group_cost_bits / Math.max(domain_bits, 1));
+		size *= 1 - density;
+		size = Math.max(2, Math.min(size, active_count));
+		return Math.max(1, nearestInt(active_count / size));
+	}
+
+	/* Time of the turns of the game */
+	public TurnBudget budget()
+	{
+		return budget;
+	}
+
+	/* Common pool if it has workers to spare */
+	private static ForkJoinPool pool()
+	{
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		return pool.getParallelism() <= 1 ? null : pool;
+	}
+
 	private HashSet <Integer> allDomains(Collection <Integer> vars)
 	{
 		HashSet <Integer> vals = new HashSet <Integer> ();
 		for (int var : vars) {
-			int[] domain = csp_engine.domain(var);
-			for (int i = 0 ; i != domain.length ; ++i)
-				vars.add(domain[i]);
+			Combinator.DomainView domain = csp_engine.view(var);
+			for (int i = 0 ; i != domain.size() ; ++i)
+				vals.add(domain.value(i));
 		}
 		return vals;
 	}
@@ -240,13 +599,6 @@ public class G7Guesser extends Guesser {
 		return res;
 	}
 
-	private HashSet <Integer> addSets(HashSet <Integer> a, HashSet <Integer> b)
-	{
-		HashSet <Integer> r = new HashSet <Integer> (a);
-		r.addAll(b);
-		return r;
-	}
-
 	private static int[] toArray(Collection <Integer> al)
 	{
 		int[] arr = new int [al.size()];
@@ -17,8 +17,9 @@ public class Pair <F, S> {
 	public int hashCode() {
 		long f = fst.hashCode();
 		long s = snd.hashCode();
-		/* Cantor's enumeration */
-		return new Long(((f + s) * (f + s) + f - s) >> 1).hashCode();
+		/* Cantor's enumeration folded as Long.hashCode() */
+		long h = ((f + s) * (f + s) + f - s) >> 1;
+		return (int) (h ^ (h >>> 32));
 	}
 
 	public boolean equals(Object obj) {
@@ -0,0 +1,125 @@
+package mapthatset.g7;
+
+import java.util.Collection;
+
+/* Symmetric relation between variables, such as
+ * being combined in a query already, as a bit matrix
+ * One bitset row per variable, allocated when it gets
+ * its first pair, so checking a variable against a
+ * whole group is a test on the union of their rows
+ * and all pairs of a group are added a word at a time
+ * Variables are one based
+ */
+public class PairMatrix {
+
+	/* Number of variables */
+	private final int variable_count;
+
+	/* Words per row */
+	private final int words;
+
+	/* Row per variable, null while it has no pair */
+	private final long[][] rows;
+
+	/* Empty relation over some variables */
+	public PairMatrix(int variables)
+	{
+		variable_count = variables;
+		words = (variables + 64) >> 6;
+		rows = new long [variables + 1][];
+	}
+
+	/* Number of variables */
+	public int variables()
+	{
+		return variable_count;
+	}
+
+	private long[] row(int var)
+	{
+		if (rows[var] == null)
+			rows[var] = new long [words];
+		return rows[var];
+	}
+
+	/* Relate two variables */
+	public void add(int var_i, int var_j)
+	{
+		if (var_i == var_j)
+			return;
+		row(var_i)[var_j >> 6] |= 1l << var_j;
+		row(var_j)[var_i >> 6] |= 1l << var_i;
+	}
+
+	/* Relate every two variables of a group */
+	public void addAll(Collection <Integer> vars)
+	{
+		long[] group = new long [words];
+		for (int var : vars)
+			group[var >> 6] |= 1l << var;
+		for (int var : vars) {
+			long[] row = row(var);
+			for (int w = 0 ; w != words ; ++w)
+				row[w] |= group[w];
+			row[var >> 6] &= ~(1l << var);
+		}
+	}
+
+	/* Check if two variables are related */
+	public boolean contains(int var_i, int var_j)
+	{
+		long[] row = rows[var_i];
+		return row != null && (row[var_j >> 6] & (1l << var_j)) != 0;
+	}
+
+	/* Number of pairs among some variables */
+	public long pairs(Collection <Integer> vars)
+	{
+		long[] set = new long [words];
+		for (int var : vars)
+			set[var >> 6] |= 1l << var;
+		long count = 0;
+		for (int var : vars) {
+			long[] row = rows[var];
+			if (row != null)
+				for (int w = 0 ; w != words ; ++w)
+					count += Long.bitCount(row[w] & set[w]);
+		}
+		return count / 2;
+	}
+
+	/* Group being built, knows the variables
+	 * related to any of its members
+	 */
+	public class Group {
+
+		/* Union of the rows of the members */
+		private final long[] related;
+
+		private Group()
+		{
+			related = new long [words];
+		}
+
+		/* Check if a variable is related to no member */
+		public boolean fits(int var)
+		{
+			return (related[var >> 6] & (1l << var)) == 0;
+		}
+
+		/* Add a member */
+		public void add(int var)
+		{
+			long[] row = rows[var];
+			if (row != null)
+				for (int w = 0 ; w != words ; ++w)
+					related[w] |= row[w];
+		}
+	}
+
+	/* Empty group */
+	public Group group()
+	{
+		return new Group();
+	}
+}
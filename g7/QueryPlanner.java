@@ -0,0 +1,544 @@
+package mapthatset.g7;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+/* Plans the next query looking a few rounds ahead
+ * Monte Carlo tree search over the solutions (or a
+ * sample of them) taken as the hidden mappings left:
+ * a node is the set of rows still consistent, its
+ * actions the most informative of some candidate
+ * queries (halving patterns and random groups) and
+ * each action splits the rows by answer into children
+ * Simulations pick actions by UCB, draw the hidden
+ * row to get the answer and back up the number of
+ * queries until one row is left, with a greedy
+ * rollout past the tree
+ * Nodes of a few rows are solved exactly instead, by
+ * branch and bound over their actions, as is a node
+ * whose actions all lead to solved children, and
+ * simulations stop at solved nodes so planning ends
+ * once the root is solved, or once more simulations
+ * stop changing the best action
+ * Every worker grows its own tree from the same root
+ * actions and the costs are merged at the end
+ */
+public class QueryPlanner {
+
+	/* Rows of the solutions used at most */
+	private static final int max_samples = 2048;
+
+	/* Actions kept per node */
+	private static final int branching = 8;
+
+	/* Random groups tried per node */
+	private static final int random_candidates = 12;
+
+	/* Exploration constant of UCB */
+	private static final double exploration = 0.7;
+
+	/* Queries of a rollout before it is cut */
+	private static final int max_rollout = 32;
+
+	/* Simulations between checks of the best action */
+	private static final int check_every = 256;
+
+	/* Checks the best action holds before stopping */
+	private static final int stable_checks = 4;
+
+	/* Rows up to which a node is solved exactly */
+	private static final int exact_rows = 64;
+
+	/* Nodes an exact solution visits before it
+	 * leaves the node to simulations
+	 */
+	private static final int exact_work = 4096;
+
+	/* Depth of a simulation past which it goes on
+	 * with a rollout instead of growing the tree
+	 */
+	private static final int max_depth = 64;
+
+	/* Plan chosen and its expected cost */
+	public static class Plan {
+
+		/* Variables to query, one based */
+		public final int[] query;
+
+		/* Expected queries until one solution is left */
+		public final double expected;
+
+		/* Simulations run */
+		public final long simulations;
+
+		Plan(int[] query, double expected, long simulations)
+		{
+			this.query = query;
+			this.expected = expected;
+			this.simulations = simulations;
+		}
+	}
+
+	/* Set of rows still consistent */
+	private class Node {
+
+		/* Rows, indices into the projection */
+		final int[] rows;
+
+		/* Queries tried here, null until expanded */
+		int[][] actions;
+
+		/* Simulations per action */
+		int[] visits;
+
+		/* Sum of costs per action */
+		double[] cost;
+
+		/* Children per action, null until tried */
+		Node[][] children;
+
+		/* Rows before each child per action */
+		int[][] offsets;
+
+		/* Simulations through this node */
+		int total;
+
+		/* Exact cost per action once all its children
+		 * are solved, negative until then
+		 */
+		double[] exact;
+
+		/* Exact cost from here, negative until solved */
+		double solved = -1;
+
+		/* Solving it exactly took too much work */
+		boolean hard;
+
+		Node(int[] rows)
+		{
+			this.rows = rows;
+			if (rows.length == 1)
+				solved = 0;
+		}
+
+		/* Find the candidate actions, a node where no
+		 * query splits the rows is left as a leaf at
+		 * the bits the rows stand for
+		 */
+		void expand(int[][] given, SplittableRandom random, long[] bits, Deadline deadline)
+		{
+			actions = given != null ? given : candidates(rows, random, bits, deadline);
+			if (actions.length == 0)
+				solved = Math.log(rows.length) / Math.log(2);
+			visits = new int [actions.length];
+			cost = new double [actions.length];
+			children = new Node [actions.length][];
+			offsets = new int [actions.length][];
+			exact = new double [actions.length];
+			Arrays.fill(exact, -1);
+		}
+
+		/* Solve an action if its children are, then
+		 * the node if all its actions are or one of
+		 * them leaves single rows
+		 */
+		void settle(int a)
+		{
+			if (exact[a] < 0) {
+				double value = 1;
+				for (Node child : children[a]) {
+					if (child.solved < 0)
+						return;
+					value += child.solved * child.rows.length / rows.length;
+				}
+				exact[a] = value;
+			}
+			if (exact[a] == 1) {
+				solved = 1;
+				return;
+			}
+			double best = exact[a];
+			for (int b = 0 ; b != actions.length ; ++b) {
+				if (exact[b] < 0)
+					return;
+				best = Math.min(best, exact[b]);
+			}
+			solved = best;
+		}
+
+		/* Action of least cost so far, -1 if none */
+		int best()
+		{
+			int best = -1;
+			double best_cost = 0;
+			for (int a = 0 ; a != actions.length ; ++a) {
+				if (exact[a] < 0 && visits[a] == 0)
+					continue;
+				double value = exact[a] >= 0 ? exact[a] : cost[a] / visits[a];
+				if (best < 0 || value < best_cost) {
+					best = a;
+					best_cost = value;
+				}
+			}
+			return best;
+		}
+
+		/* Split the rows by the answer of an action */
+		void split(int a, long[] bits)
+		{
+			int[] answer_of = new int [rows.length];
+			int count = scorer.classes(actions[a], rows, answer_of, bits);
+			int[] starts = new int [count + 1];
+			for (int i = 0 ; i != rows.length ; ++i)
+				starts[answer_of[i] + 1]++;
+			for (int c = 0 ; c != count ; ++c)
+				starts[c + 1] += starts[c];
+			int[][] child_rows = new int [count][];
+			for (int c = 0 ; c != count ; ++c)
+				child_rows[c] = new int [starts[c + 1] - starts[c]];
+			int[] filled = new int [count];
+			for (int i = 0 ; i != rows.length ; ++i)
+				child_rows[answer_of[i]][filled[answer_of[i]]++] = rows[i];
+			children[a] = new Node [count];
+			for (int c = 0 ; c != count ; ++c)
+				children[a][c] = new Node(child_rows[c]);
+			offsets[a] = starts;
+		}
+	}
+
+	/* Rows projected by column */
+	private QueryScorer scorer;
+
+	/* Generator of the planner, workers split their own */
+	private final SplittableRandom random;
+
+	/* Planner seeded from the run seed */
+	public QueryPlanner()
+	{
+		this(RunSeed.generator(QueryPlanner.class));
+	}
+
+	/* Planner drawing from a generator of the caller */
+	public QueryPlanner(SplittableRandom random)
+	{
+		this.random = random;
+	}
+
+	/* Plan the next query over the solutions within
+	 * the deadline, in parallel on the pool if any
+	 * Returns null if one solution or none is left
+	 * or no query tells the solutions apart
+	 */
+	public Plan plan(SolutionColumns solutions, final Deadline deadline, ForkJoinPool pool)
+	{
+		if (solutions.size() <= 1)
+			return null;
+		scorer = new QueryScorer(solutions, max_samples, random.split());
+		if (deadline.cancelled())
+			return null;
+		int[] all = new int [scorer.samples];
+		for (int i = 0 ; i != all.length ; ++i)
+			all[i] = i;
+		final int[][] root_actions = candidates(all, random.split(), scorer.bits(), deadline);
+		if (root_actions.length == 0)
+			return null;
+		int workers = pool == null ? 1 : pool.getParallelism();
+		final Node[] roots = new Node [workers];
+		Vector <Callable <Object>> tasks = new Vector <Callable <Object>> ();
+		for (int w = 0 ; w != workers ; ++w) {
+			final int worker = w;
+			final SplittableRandom generator = random.split();
+			roots[w] = new Node(all);
+			tasks.add(new Callable <Object> () {
+				public Object call()
+				{
+					Node root = roots[worker];
+					long[] bits = scorer.bits();
+					root.expand(root_actions, generator, bits, deadline);
+					/* Until the root is solved, its best action
+					 * holds or the deadline, the actions are
+					 * tried in order of entropy first so a short
+					 * turn still picks the most informative
+					 */
+					int best = -1;
+					int stable = 0;
+					for (long s = 1 ; ; ++s) {
+						simulate(root, generator, bits, 0, deadline);
+						if (root.solved >= 0 || deadline.expired())
+							break;
+						if (s % check_every == 0) {
+							int now = root.best();
+							stable = now == best ? stable + 1 : 0;
+							if (stable == stable_checks)
+								break;
+							best = now;
+						}
+					}
+					return null;
+				}
+			});
+		}
+		Combinator.run(tasks, pool);
+		/* Merge the roots and take the cheapest action,
+		 * at its exact cost if some worker solved it
+		 */
+		int best = -1;
+		double best_cost = 0;
+		long simulations = 0;
+		for (int a = 0 ; a != root_actions.length ; ++a) {
+			int visits = 0;
+			double cost = 0;
+			double exact = -1;
+			for (int w = 0 ; w != workers ; ++w) {
+				visits += roots[w].visits[a];
+				cost += roots[w].cost[a];
+				exact = Math.max(exact, roots[w].exact[a]);
+			}
+			simulations += visits;
+			if (exact >= 0) {
+				visits = 1;
+				cost = exact;
+			}
+			if (visits != 0 && (best < 0 || cost / visits < best_cost)) {
+				best = a;
+				best_cost = cost / visits;
+			}
+		}
+		/* Out of time before any simulation, the most
+		 * informative action at the bits left
+		 */
+		if (best < 0)
+			return new Plan(root_actions[0], Math.log(all.length) / Math.log(2), 0);
+		return new Plan(root_actions[best], best_cost, simulations);
+	}
+
+	/* One simulation from a node some depth down the
+	 * tree, returns the queries it took until one row
+	 * was left
+	 */
+	private double simulate(Node node, SplittableRandom random, long[] bits, int depth,
+	                        Deadline deadline)
+	{
+		if (node.rows.length == 1)
+			return 0;
+		if (node.rows.length <= exact_rows && !node.hard) {
+			int[] work = {exact_work};
+			solve(node, Double.MAX_VALUE, random, bits, work, deadline);
+			if (node.solved >= 0)
+				return node.solved;
+			node.hard = true;
+		}
+		if (node.actions == null)
+			node.expand(null, random, bits, deadline);
+		if (node.solved >= 0)
+			return node.solved;
+		/* Untried actions first then UCB on cost */
+		int pick = -1;
+		double pick_value = 0;
+		for (int a = 0 ; a != node.actions.length ; ++a) {
+			if (node.visits[a] == 0) {
+				pick = a;
+				break;
+			}
+			double value = -node.cost[a] / node.visits[a] +
+				exploration * Math.sqrt(Math.log(node.total) / node.visits[a]);
+			if (pick < 0 || value > pick_value) {
+				pick = a;
+				pick_value = value;
+			}
+		}
+		boolean fresh = node.children[pick] == null;
+		if (fresh)
+			node.split(pick, bits);
+		/* Draw the hidden row and follow its answer */
+		int row = random.nextInt(node.rows.length);
+		int[] offsets = node.offsets[pick];
+		int child = Arrays.binarySearch(offsets, row);
+		if (child < 0)
+			child = -child - 2;
+		Node next = node.children[pick][child];
+		double cost = 1;
+		if (next.solved >= 0)
+			cost += next.solved;
+		else if ((fresh && next.rows.length > exact_rows) || depth == max_depth)
+			cost += rollout(next.rows, random, bits, deadline);
+		else
+			cost += simulate(next, random, bits, depth + 1, deadline);
+		node.visits[pick]++;
+		node.cost[pick] += cost;
+		node.total++;
+		node.settle(pick);
+		return cost;
+	}
+
+	/* Solve a node exactly if it costs less than a
+	 * bound, otherwise return some cost at least the
+	 * bound, or a negative cost once out of work or
+	 * past the deadline
+	 * Children of two rows or more cost at least one
+	 * more query, actions are cut as soon as that
+	 * bound reaches the best action found
+	 */
+	private double solve(Node node, double bound, SplittableRandom random, long[] bits, int[] work,
+	                     Deadline deadline)
+	{
+		if (node.solved >= 0)
+			return node.solved;
+		if (work[0]-- == 0 || deadline.expired())
+			return -1;
+		if (node.actions == null)
+			node.expand(null, random, bits, deadline);
+		if (node.solved >= 0)
+			return node.solved;
+		double best = bound;
+		for (int a = 0 ; a != node.actions.length ; ++a) {
+			if (node.children[a] == null)
+				node.split(a, bits);
+			Node[] children = node.children[a];
+			double cost = 1;
+			for (Node child : children)
+				cost += lower(child) * child.rows.length / node.rows.length;
+			for (int c = 0 ; c != children.length && cost < best ; ++c) {
+				if (children[c].solved >= 0)
+					continue;
+				double p = children[c].rows.length / (double) node.rows.length;
+				double low = lower(children[c]);
+				double value = solve(children[c], low + (best - cost) / p, random, bits, work, deadline);
+				if (value < 0)
+					return -1;
+				cost += p * (value - low);
+			}
+			node.settle(a);
+			best = Math.min(best, cost);
+		}
+		/* Every action is solved or no better */
+		if (best < bound)
+			node.solved = best;
+		return best;
+	}
+
+	/* Least cost of a node */
+	private static double lower(Node node)
+	{
+		return node.solved >= 0 ? node.solved : 1;
+	}
+
+	/* Greedy play from some rows: the best of the
+	 * candidates each time with a random hidden row,
+	 * estimated by the bits left once cut
+	 */
+	private double rollout(int[] rows, SplittableRandom random, long[] bits, Deadline deadline)
+	{
+		int hidden = rows[random.nextInt(rows.length)];
+		int queries = 0;
+		int[] answer_of = new int [rows.length];
+		while (rows.length != 1) {
+			if (queries == max_rollout || deadline.expired())
+				return queries + Math.log(rows.length) / Math.log(2);
+			int[][] actions = candidates(rows, random, bits, deadline);
+			if (actions.length == 0)
+				return queries + Math.log(rows.length) / Math.log(2);
+			int[] query = actions[0];
+			scorer.classes(query, rows, answer_of, bits);
+			int answer = -1;
+			for (int i = 0 ; answer < 0 ; ++i)
+				if (rows[i] == hidden)
+					answer = answer_of[i];
+			int size = 0;
+			int[] left = new int [rows.length];
+			for (int i = 0 ; i != rows.length ; ++i)
+				if (answer_of[i] == answer)
+					left[size++] = rows[i];
+			rows = Arrays.copyOf(left, size);
+			queries++;
+		}
+		return queries;
+	}
+
+	/* Candidate queries for some rows, best first
+	 * Halving patterns over the variables that still
+	 * differ and random groups of a few sizes, the
+	 * ones with the highest entropy over the rows kept
+	 * Past the deadline only those scored are kept,
+	 * at least the first
+	 */
+	private int[][] candidates(int[] rows, SplittableRandom random, long[] bits, Deadline deadline)
+	{
+		char[][] projection = scorer.projection;
+		int[] useful = new int [projection.length];
+		int count = 0;
+		for (int var_i = 0 ; var_i != projection.length ; ++var_i)
+			for (int i = 1 ; i != rows.length ; ++i)
+				if (projection[var_i][rows[i]] != projection[var_i][rows[0]]) {
+					useful[count++] = var_i + 1;
+					break;
+				}
+		for (int i = 0 ; i != count ; ++i) {
+			int j = i + random.nextInt(count - i);
+			int t = useful[i];
+			useful[i] = useful[j];
+			useful[j] = t;
+		}
+		Vector <int[]> queries = new Vector <int[]> ();
+		/* Variables at positions with some bit set */
+		for (int bit = 1 ; bit < count ; bit <<= 1) {
+			int[] query = new int [count];
+			int size = 0;
+			for (int i = 0 ; i != count ; ++i)
+				if ((i & bit) != 0)
+					query[size++] = useful[i];
+			queries.add(Arrays.copyOf(query, size));
+		}
+		int[] sizes = {1, 2, (int) Math.ceil(Math.sqrt(count)), (count + 2) / 3, (count + 1) / 2};
+		for (int c = 0 ; c != random_candidates ; ++c) {
+			int size = Math.min(count, Math.max(1, sizes[c % sizes.length]));
+			int[] query = new int [size];
+			for (int i = 0 ; i != size ; ++i) {
+				int j = i + random.nextInt(count - i);
+				int t = useful[i];
+				useful[i] = useful[j];
+				useful[j] = t;
+				query[i] = useful[i];
+			}
+			queries.add(query);
+		}
+		/* Keep the most informative */
+		double[] entropy = new double [queries.size()];
+		int[] answer_of = new int [rows.length];
+		for (int q = 0 ; q != entropy.length ; ++q) {
+			if (q != 0 && deadline.expired())
+				break;
+			int[] class_sizes = new int [scorer.classes(queries.get(q), rows, answer_of, bits)];
+			for (int i = 0 ; i != rows.length ; ++i)
+				class_sizes[answer_of[i]]++;
+			for (int c = 0 ; c != class_sizes.length ; ++c) {
+				double p = class_sizes[c] / (double) rows.length;
+				entropy[q] -= p * Math.log(p);
+			}
+		}
+		/* Highest entropy first, a query every row
+		 * answers alike leads back to the same rows so
+		 * only queries with some entropy are kept and
+		 * every child has fewer rows than its node,
+		 * none if no query splits the rows
+		 */
+		int splitting = 0;
+		for (int q = 0 ; q != entropy.length ; ++q)
+			if (entropy[q] > 0)
+				splitting++;
+		int kept = Math.min(branching, splitting);
+		int[][] actions = new int [kept][];
+		for (int k = 0 ; k != kept ; ++k) {
+			int best = 0;
+			for (int q = 1 ; q != entropy.length ; ++q)
+				if (entropy[q] > entropy[best])
+					best = q;
+			actions[k] = queries.get(best);
+			entropy[best] = -1;
+		}
+		return actions;
+	}
+}
@@ -0,0 +1,334 @@
+package mapthatset.g7;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.SplittableRandom;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+/* Scores candidate queries by the information
+ * their answer is expected to give
+ * The answer of a query is the set of values its
+ * variables take, so over the solutions (or a sample
+ * of them) each query splits the rows by answer and
+ * the entropy of that split is the expected gain in
+ * bits, with the expected solutions left alongside
+ * The rows used are projected once into columns of
+ * value offsets shared by all the candidates
+ */
+public class QueryScorer {
+
+	/* Score of a candidate query */
+	public static class Score {
+
+		/* Variables queried, one based */
+		public final int[] query;
+
+		/* Entropy of the answer in bits */
+		public final double entropy;
+
+		/* Number of different answers */
+		public final int answers;
+
+		/* Expected number of solutions left */
+		public final double expected;
+
+		Score(int[] query, double entropy, int answers, double expected)
+		{
+			this.query = query;
+			this.entropy = entropy;
+			this.answers = answers;
+			this.expected = expected;
+		}
+	}
+
+	/* Value offsets per variable per row used */
+	final char[][] projection;
+
+	/* Number of rows used */
+	final int samples;
+
+	/* Number of solutions the rows stand for */
+	private final double population;
+
+	/* Words of a bitset over the value offsets */
+	private final int words;
+
+	/* Score queries over the solutions, using a
+	 * random sample of some rows if there are more
+	 */
+	public QueryScorer(SolutionColumns solutions, int max_samples, SplittableRandom random)
+	{
+		int rows = solutions.size();
+		int variable_count = solutions.variables();
+		int[] picked;
+		if (rows <= max_samples) {
+			picked = new int [rows];
+			for (int row = 0 ; row != rows ; ++row)
+				picked[row] = row;
+		} else {
+			/* Partial shuffle of the row numbers */
+			int[] all = new int [rows];
+			for (int row = 0 ; row != rows ; ++row)
+				all[row] = row;
+			for (int i = 0 ; i != max_samples ; ++i) {
+				int j = i + random.nextInt(rows - i);
+				int t = all[i];
+				all[i] = all[j];
+				all[j] = t;
+			}
+			picked = Arrays.copyOf(all, max_samples);
+		}
+		samples = picked.length;
+		population = rows;
+		projection = new char [variable_count][samples];
+		int range = 1;
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i) {
+			char[] column = solutions.columns[var_i];
+			for (int s = 0 ; s != samples ; ++s) {
+				projection[var_i][s] = column[picked[s]];
+				if (column[picked[s]] >= range)
+					range = column[picked[s]] + 1;
+			}
+		}
+		words = (range + 63) >> 6;
+	}
+
+	/* Score queries over random solutions of an engine
+	 * when all the solutions are not known, they are
+	 * not uniform so the scores are estimates
+	 */
+	public QueryScorer(Engine engine, int max_samples, SplittableRandom random, Deadline deadline)
+	{
+		int variable_count = engine.variables();
+		Vector <int[]> found = new Vector <int[]> ();
+		while (found.size() != max_samples) {
+			Combinator.Result result = engine.sample(random.split(), deadline);
+			if (result.status != Combinator.Status.COMPLETE)
+				break;
+			found.add(result.solutions[0]);
+		}
+		samples = found.size();
+		population = samples;
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		for (int[] solution : found)
+			for (int var_i = 0 ; var_i != variable_count ; ++var_i) {
+				min = Math.min(min, solution[var_i]);
+				max = Math.max(max, solution[var_i]);
+			}
+		projection = new char [variable_count][samples];
+		for (int s = 0 ; s != samples ; ++s)
+			for (int var_i = 0 ; var_i != variable_count ; ++var_i)
+				projection[var_i][s] = (char) (found.get(s)[var_i] - min);
+		words = samples == 0 ? 1 : (max - min + 64) >> 6;
+	}
+
+	/* Number of rows used */
+	public int samples()
+	{
+		return samples;
+	}
+
+	/* Score of one query */
+	public Score score(int[] query)
+	{
+		if (samples == 0)
+			return new Score(query, 0, 0, 0);
+		int[] rows = new int [samples];
+		for (int s = 0 ; s != samples ; ++s)
+			rows[s] = s;
+		int[] class_of = new int [samples];
+		int distinct = classes(query, rows, class_of, bits());
+		int[] sizes = new int [distinct];
+		for (int s = 0 ; s != samples ; ++s)
+			sizes[class_of[s]]++;
+		double entropy = 0;
+		double squares = 0;
+		for (int c = 0 ; c != distinct ; ++c) {
+			double p = sizes[c] / (double) samples;
+			entropy -= p * Math.log(p);
+			squares += p * p;
+		}
+		return new Score(query, entropy / Math.log(2), distinct, squares * population);
+	}
+
+	/* Split some rows by their answer to a query into
+	 * classes numbered from zero, class of each row in
+	 * the array given, returns the number of classes
+	 * Rows are sorted by fingerprint and those with the
+	 * same fingerprint are compared bit by bit, so the
+	 * classes are exact even if fingerprints collide
+	 */
+	int classes(int[] query, int[] rows, int[] class_of, long[] bits)
+	{
+		long[] answers = new long [rows.length];
+		for (int i = 0 ; i != rows.length ; ++i)
+			answers[i] = answer(query, rows[i], bits);
+		long[] distinct = answers.clone();
+		Arrays.sort(distinct);
+		int count = 0;
+		for (int i = 0 ; i != distinct.length ; ++i)
+			if (i == 0 || distinct[i] != distinct[i - 1])
+				distinct[count++] = distinct[i];
+		/* First row of each fingerprint and, past it,
+		 * rows of the other answers sharing one
+		 */
+		int[] first = new int [count];
+		Arrays.fill(first, -1);
+		Vector <int[]> collided = new Vector <int[]> ();
+		int classes = count;
+		for (int i = 0 ; i != rows.length ; ++i) {
+			int c = Arrays.binarySearch(distinct, 0, count, answers[i]);
+			if (first[c] < 0)
+				first[c] = i;
+			else if (words != 1 && !same(query, rows[first[c]], rows[i], bits)) {
+				int k = -1;
+				for (int[] other : collided)
+					if (other[0] == c && same(query, rows[other[1]], rows[i], bits)) {
+						k = other[2];
+						break;
+					}
+				if (k < 0) {
+					k = classes++;
+					collided.add(new int [] {c, i, k});
+				}
+				c = k;
+			}
+			class_of[i] = c;
+		}
+		return classes;
+	}
+
+	/* Fingerprint of the answer of a query for a row,
+	 * exact for one word, otherwise a mix of the words
+	 * in order that classes() checks for collisions
+	 * Takes the bitsets of bits() to work in
+	 */
+	long answer(int[] query, int row, long[] bits)
+	{
+		if (words == 1) {
+			long answer = 0;
+			for (int i = 0 ; i != query.length ; ++i)
+				answer |= 1l << projection[query[i] - 1][row];
+			return answer;
+		}
+		fill(query, row, bits, 0);
+		long answer = 0x2545f4914f6cdd1dl;
+		for (int w = 0 ; w != words ; ++w) {
+			answer = (answer + bits[w]) * 0x9e3779b97f4a7c15l;
+			answer ^= answer >>> 29;
+		}
+		return answer;
+	}
+
+	/* Check if two rows give the same answer */
+	boolean same(int[] query, int row_a, int row_b, long[] bits)
+	{
+		if (words == 1)
+			return answer(query, row_a, bits) == answer(query, row_b, bits);
+		fill(query, row_a, bits, 0);
+		fill(query, row_b, bits, words);
+		for (int w = 0 ; w != words ; ++w)
+			if (bits[w] != bits[words + w])
+				return false;
+		return true;
+	}
+
+	/* Set the bits of the values a query takes in
+	 * a row, in the words of a bitset from some one
+	 */
+	private void fill(int[] query, int row, long[] bits, int from)
+	{
+		Arrays.fill(bits, from, from + words, 0);
+		for (int i = 0 ; i != query.length ; ++i) {
+			int off = projection[query[i] - 1][row];
+			bits[from + (off >> 6)] |= 1l << off;
+		}
+	}
+
+	/* Bitsets for answer(), same() and classes() */
+	long[] bits()
+	{
+		return new long [2 * words];
+	}
+
+	/* Score candidates in parallel on the pool
+	 * or here if none, best first
+	 */
+	public Vector <Score> rank(Collection <int[]> candidates, ForkJoinPool pool)
+	{
+		final Score[] scores = new Score [candidates.size()];
+		Vector <Callable <Object>> tasks = new Vector <Callable <Object>> ();
+		int i = 0;
+		for (final int[] query : candidates) {
+			final int pos = i++;
+			tasks.add(new Callable <Object> () {
+				public Object call()
+				{
+					scores[pos] = score(query);
+					return null;
+				}
+			});
+		}
+		Combinator.run(tasks, pool);
+		Vector <Score> ranked = new Vector <Score> (Arrays.asList(scores));
+		Collections.sort(ranked, new Comparator <Score> () {
+			public int compare(Score a, Score b)
+			{
+				if (a.entropy != b.entropy)
+					return a.entropy > b.entropy ? -1 : 1;
+				return a.query.length - b.query.length;
+			}
+		});
+		return ranked;
+	}
+
+	/* Check that rows split by a query are alike only
+	 * when they take the same set of values, on random
+	 * rows over more values than a word and on values
+	 * a word apart such as 5 and 69
+	 */
+	public static void main(String[] args)
+	{
+		SplittableRandom random = RunSeed.generator(QueryScorer.class);
+		int variables = 3;
+		int values = 200;
+		int rows = 2000;
+		int[][] solutions = new int [rows][variables];
+		for (int row = 0 ; row != rows ; ++row)
+			for (int var_i = 0 ; var_i != variables ; ++var_i)
+				solutions[row][var_i] = 1 + random.nextInt(row < rows / 2 ? 8 : values);
+		solutions[0] = new int [] {5, 5, 5};
+		solutions[1] = new int [] {69, 69, 69};
+		solutions[2] = new int [] {5, 69, 5};
+		solutions[3] = new int [] {69, 5, 69};
+		QueryScorer scorer = new QueryScorer(new SolutionColumns(solutions, variables, 1, values, 0),
+		                                     rows, random);
+		int[] query = {1, 2, 3};
+		int[] all = new int [scorer.samples];
+		for (int i = 0 ; i != all.length ; ++i)
+			all[i] = i;
+		int[] class_of = new int [all.length];
+		scorer.classes(query, all, class_of, scorer.bits());
+		int wrong = 0;
+		for (int i = 0 ; i != all.length ; ++i)
+			for (int j = 0 ; j != i ; ++j) {
+				HashSet <Integer> a = new HashSet <Integer> ();
+				HashSet <Integer> b = new HashSet <Integer> ();
+				for (int var_i = 0 ; var_i != variables ; ++var_i) {
+					a.add((int) scorer.projection[var_i][i]);
+					b.add((int) scorer.projection[var_i][j]);
+				}
+				if (a.equals(b) != (class_of[i] == class_of[j]))
+					wrong++;
+			}
+		System.out.println(wrong == 0 ? "OK" : wrong + " pairs split wrong");
+		if (wrong != 0)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,44 @@
+package mapthatset.g7;
+
+import java.util.SplittableRandom;
+
+/* Seed of the whole run
+ * Every random component (engines, search workers,
+ * guessers, mappers) derives its own generator from
+ * it so no generator is shared between threads and
+ * the same seed replays exactly the same run
+ * Set it with -Dmapthatset.seed=<number>
+ * If not set every component is seeded randomly
+ */
+public class RunSeed {
+
+	/* System property holding the run seed */
+	public static final String property = "mapthatset.seed";
+
+	/* Generator for a named component of the run */
+	public static SplittableRandom generator(String component)
+	{
+		Long seed = Long.getLong(property);
+		if (seed == null)
+			return new SplittableRandom();
+		return new SplittableRandom(mix(seed.longValue(), component));
+	}
+
+	/* Generator for a component named by its class */
+	public static SplittableRandom generator(Class <?> component)
+	{
+		return generator(component.getName());
+	}
+
+	/* Mix run seed with the component name
+	 * Uses the finalizer of SplitMix64 so close
+	 * names give unrelated streams
+	 */
+	private static long mix(long seed, String component)
+	{
+		long z = seed + 0x9e3779b97f4a7c15l * (component.hashCode() + 1l);
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9l;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebl;
+		return z ^ (z >>> 31);
+	}
+}
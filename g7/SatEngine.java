@@ -0,0 +1,468 @@
+package mapthatset.g7;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.Vector;
+
+/* Clause learning backend for a combinator
+ * One SAT variable per variable and value in its
+ * domain with exactly one true per variable, and
+ * per constraint no value outside it for its variables
+ * and at least one of its variables on each of its values
+ * Follows the engine: constraints and domain cuts made
+ * since the last call are added as clauses and a pop()
+ * of the engine rebuilds the clauses from scratch
+ * Results mean the same as for the engine calls and
+ * complete refines cut the domains of the engine
+ */
+public class SatEngine implements Engine {
+
+	/* Domains up to this size use pairwise at most one */
+	private static final int pairwise_limit = 6;
+
+	/* Activation variables left over by enumerations
+	 * before the clauses are built again
+	 */
+	private static final int max_dead = 256;
+
+	/* Engine followed */
+	private final Combinator engine;
+
+	/* Number of variables */
+	private final int variable_count;
+
+	/* Minimum value */
+	private final int min_value;
+
+	/* Solver holding the clauses */
+	private SatSolver solver;
+
+	/* SAT variable per variable and value offset, -1 if none */
+	private int[][] literal_var;
+
+	/* Value offsets known false per variable */
+	private boolean[][] excluded;
+
+	/* Constraints encoded so far */
+	private int encoded;
+
+	/* Generation of the engine when the clauses were built */
+	private int generation;
+
+	/* Activation variables set false for good */
+	private int dead;
+
+	/* Backend for an engine */
+	public SatEngine(Combinator engine)
+	{
+		this.engine = engine;
+		variable_count = engine.variables();
+		min_value = engine.minValue();
+		rebuild();
+	}
+
+	/* Backend for a new engine of some variables */
+	public SatEngine(int vars)
+	{
+		this(new Combinator(vars));
+	}
+
+	/* Number of variables */
+	public int variables()
+	{
+		return variable_count;
+	}
+
+	/* Add a new constraint to the engine followed */
+	public void constraint(int[] vars, int[] vals)
+	{
+		engine.constraint(vars, vals);
+	}
+
+	/* Number of constraints so far */
+	public int constraints()
+	{
+		return engine.constraints();
+	}
+
+	/* Current domain of a variable */
+	public int[] domain(int var)
+	{
+		return engine.domain(var);
+	}
+
+	/* Solver conflicts so far */
+	public long conflicts()
+	{
+		return solver.conflicts();
+	}
+
+	/* Encode the current domains, constraints follow */
+	private void rebuild()
+	{
+		engine.prepare();
+		solver = new SatSolver();
+		generation = engine.generation();
+		encoded = 0;
+		dead = 0;
+		int value_count = engine.maxValue() - min_value + 1;
+		literal_var = new int [variable_count][value_count];
+		excluded = new boolean [variable_count][value_count];
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i) {
+			Arrays.fill(literal_var[var_i], -1);
+			int[] domain = engine.domain(var_i + 1);
+			int[] lits = new int [domain.length];
+			for (int i = 0 ; i != domain.length ; ++i) {
+				int var = solver.newVariable();
+				literal_var[var_i][domain[i] - min_value] = var;
+				lits[i] = SatSolver.literal(var, true);
+			}
+			exactlyOne(lits);
+		}
+	}
+
+	/* Exactly one literal true, pairwise for small
+	 * sets and with a sequential counter otherwise
+	 */
+	private void exactlyOne(int[] lits)
+	{
+		solver.addClause(lits);
+		int n = lits.length;
+		if (n <= pairwise_limit) {
+			for (int i = 0 ; i != n ; ++i)
+				for (int j = i + 1 ; j != n ; ++j)
+					solver.addClause(lits[i] ^ 1, lits[j] ^ 1);
+			return;
+		}
+		/* Counter variable i is true if one of
+		 * the first i + 1 literals is true
+		 */
+		int prev = SatSolver.literal(solver.newVariable(), true);
+		solver.addClause(lits[0] ^ 1, prev);
+		for (int i = 1 ; i != n - 1 ; ++i) {
+			int next = SatSolver.literal(solver.newVariable(), true);
+			solver.addClause(lits[i] ^ 1, next);
+			solver.addClause(prev ^ 1, next);
+			solver.addClause(lits[i] ^ 1, prev ^ 1);
+			prev = next;
+		}
+		solver.addClause(lits[n - 1] ^ 1, prev ^ 1);
+	}
+
+	/* Bring the clauses up to date with the engine */
+	private void sync()
+	{
+		engine.prepare();
+		if (engine.generation() != generation || engine.constraints() < encoded || dead >= max_dead)
+			rebuild();
+		for (; encoded != engine.constraints() ; ++encoded)
+			encode(encoded);
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i) {
+			Combinator.DomainView domain = engine.view(var_i + 1);
+			for (int off = 0 ; off != literal_var[var_i].length ; ++off)
+				if (literal_var[var_i][off] >= 0 && !excluded[var_i][off] &&
+				    !domain.contains(off + min_value))
+					exclude(var_i, off);
+		}
+	}
+
+	/* Encode a constraint of the engine */
+	private void encode(int con_pos)
+	{
+		int[] con_vars = engine.constraintVariables(con_pos);
+		long[] bits = engine.constraintValues(con_pos);
+		for (int i = 0 ; i != con_vars.length ; ++i) {
+			int var_i = con_vars[i];
+			for (int off = 0 ; off != literal_var[var_i].length ; ++off)
+				if (literal_var[var_i][off] >= 0 && !excluded[var_i][off] &&
+				    (bits[off >> 6] & (1l << off)) == 0)
+					exclude(var_i, off);
+		}
+		/* Every value taken by one of the variables */
+		for (int w = 0 ; w != bits.length ; ++w)
+			for (long word = bits[w] ; word != 0 ; word &= word - 1) {
+				int off = (w << 6) + Long.numberOfTrailingZeros(word);
+				int[] support = new int [con_vars.length];
+				int size = 0;
+				for (int i = 0 ; i != con_vars.length ; ++i)
+					if (literal_var[con_vars[i]][off] >= 0)
+						support[size++] = SatSolver.literal(literal_var[con_vars[i]][off], true);
+				solver.addClause(Arrays.copyOf(support, size));
+			}
+	}
+
+	/* Assert a value is not taken */
+	private void exclude(int var_i, int off)
+	{
+		excluded[var_i][off] = true;
+		solver.addClause(SatSolver.literal(literal_var[var_i][off], false));
+	}
+
+	/* Solution of the last model */
+	private int[] solution()
+	{
+		int[] solution = new int [variable_count];
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i)
+			for (int off = 0 ; off != literal_var[var_i].length ; ++off)
+				if (literal_var[var_i][off] >= 0 && solver.model(literal_var[var_i][off])) {
+					solution[var_i] = off + min_value;
+					break;
+				}
+		return solution;
+	}
+
+	/* Clause ruling out a solution while a literal is true */
+	private int[] block(int[] solution, int activation)
+	{
+		int[] clause = new int [variable_count + 1];
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i)
+			clause[var_i] = SatSolver.literal(literal_var[var_i][solution[var_i] - min_value], false);
+		clause[variable_count] = activation ^ 1;
+		return clause;
+	}
+
+	/* Status of a solve cut short */
+	private static Combinator.Status expired(Deadline deadline)
+	{
+		return deadline.cancelled() ? Combinator.Status.CANCELLED : Combinator.Status.TIMEOUT;
+	}
+
+	/* Search for up to two solutions within the deadline
+	 * The solution is unique if the result is COMPLETE
+	 * with count equal to one
+	 */
+	public Combinator.Result unique(Deadline deadline)
+	{
+		return enumerate(2, true, false, deadline);
+	}
+
+	/* Find all solutions within the deadline by
+	 * blocking each one found, refines domains
+	 * if the search is complete
+	 */
+	public Combinator.Result findall(Deadline deadline)
+	{
+		return enumerate(Long.MAX_VALUE, true, true, deadline);
+	}
+
+	/* Count solutions within the deadline
+	 * Domains are left untouched
+	 */
+	public Combinator.Result count(Deadline deadline)
+	{
+		return enumerate(Long.MAX_VALUE, false, false, deadline);
+	}
+
+	/* Enumerate up to a limit of solutions
+	 * Blocking clauses hang off a fresh literal
+	 * assumed during the enumeration and set
+	 * false after it so later calls see none,
+	 * then the solver drops them and the clauses
+	 * are built again at the next sync once the
+	 * activation variables left over are too many
+	 */
+	private Combinator.Result enumerate(long limit, boolean keep, boolean refine, Deadline deadline)
+	{
+		sync();
+		int activation = SatSolver.literal(solver.newVariable(), true);
+		int[] assumptions = {activation};
+		Vector <int[]> found = new Vector <int[]> ();
+		long[][] seen = new long [variable_count][engine.words()];
+		long count = 0;
+		SatSolver.Outcome outcome = SatSolver.Outcome.SATISFIABLE;
+		while (count != limit) {
+			outcome = solver.solve(assumptions, deadline);
+			if (outcome != SatSolver.Outcome.SATISFIABLE)
+				break;
+			int[] solution = solution();
+			count++;
+			if (keep)
+				found.add(solution);
+			engine.mark(seen, solution);
+			solver.addClause(block(solution, activation));
+		}
+		solver.addClause(activation ^ 1);
+		solver.simplify();
+		dead++;
+		Combinator.Status status;
+		if (outcome == SatSolver.Outcome.UNKNOWN)
+			status = expired(deadline);
+		else if (count == 0)
+			status = Combinator.Status.UNSATISFIABLE;
+		else
+			status = Combinator.Status.COMPLETE;
+		if (refine && count != limit && status == Combinator.Status.COMPLETE)
+			engine.cut(seen);
+		return new Combinator.Result(status, count,
+			keep ? found.toArray(new int [found.size()][]) : null, encoded);
+	}
+
+	/* Filter a superset of solutions solving under each
+	 * row as assumptions, which propagation settles, and
+	 * refine domains if complete
+	 * Every row is checked against all the constraints
+	 * whatever the watermark
+	 */
+	public Combinator.Result filter(int[][] solutions_superset, int watermark, Deadline deadline)
+	{
+		sync();
+		long[][] seen = new long [variable_count][engine.words()];
+		Vector <int[]> kept = new Vector <int[]> ();
+		int[] assumptions = new int [variable_count];
+		int row = 0;
+		next_row:
+		for (; row != solutions_superset.length ; ++row) {
+			int[] solution = solutions_superset[row];
+			for (int var_i = 0 ; var_i != variable_count ; ++var_i) {
+				int var = literal_var[var_i][solution[var_i] - min_value];
+				if (var < 0)
+					continue next_row;
+				assumptions[var_i] = SatSolver.literal(var, true);
+			}
+			SatSolver.Outcome outcome = solver.solve(assumptions, deadline);
+			if (outcome == SatSolver.Outcome.UNKNOWN)
+				break;
+			if (outcome == SatSolver.Outcome.SATISFIABLE) {
+				kept.add(solution);
+				engine.mark(seen, solution);
+			}
+		}
+		/* Cut short so keep the rest unchecked */
+		if (row != solutions_superset.length) {
+			for (; row != solutions_superset.length ; ++row)
+				kept.add(solutions_superset[row]);
+			return new Combinator.Result(expired(deadline), kept.size(),
+				kept.toArray(new int [kept.size()][]), watermark);
+		}
+		if (kept.size() == 0)
+			return new Combinator.Result(Combinator.Status.UNSATISFIABLE, 0, new int [0][], encoded);
+		engine.cut(seen);
+		return new Combinator.Result(Combinator.Status.COMPLETE, kept.size(),
+			kept.toArray(new int [kept.size()][]), encoded);
+	}
+
+	/* One random solution within the deadline
+	 * Variables in random order are assumed to a
+	 * random value their last model agrees with or
+	 * that is satisfiable, so not uniformly
+	 */
+	public Combinator.Result sample(SplittableRandom generator, Deadline deadline)
+	{
+		sync();
+		SatSolver.Outcome outcome = solver.solve(deadline);
+		if (outcome != SatSolver.Outcome.SATISFIABLE)
+			return new Combinator.Result(outcome == SatSolver.Outcome.UNKNOWN ?
+				expired(deadline) : Combinator.Status.UNSATISFIABLE, 0, new int [0][], encoded);
+		int[] solution = solution();
+		int[] order = new int [variable_count];
+		for (int i = 0 ; i != variable_count ; ++i)
+			order[i] = i;
+		int[] assumptions = new int [0];
+		for (int i = 0 ; i != variable_count ; ++i) {
+			int swap = i + generator.nextInt(variable_count - i);
+			int var_i = order[swap];
+			order[swap] = order[i];
+			order[i] = var_i;
+			int[] domain = engine.domain(var_i + 1);
+			assumptions = Arrays.copyOf(assumptions, i + 1);
+			for (int left = domain.length ; left != 0 ; --left) {
+				int pick = generator.nextInt(left);
+				int value = domain[pick];
+				domain[pick] = domain[left - 1];
+				assumptions[i] = SatSolver.literal(literal_var[var_i][value - min_value], true);
+				if (solution[var_i] == value)
+					break;
+				outcome = solver.solve(assumptions, deadline);
+				if (outcome == SatSolver.Outcome.UNKNOWN) {
+					int[][] one = {solution};
+					return new Combinator.Result(expired(deadline), 1, one, encoded);
+				}
+				if (outcome == SatSolver.Outcome.SATISFIABLE) {
+					solution = solution();
+					break;
+				}
+			}
+		}
+		int[][] one = {solution};
+		return new Combinator.Result(Combinator.Status.COMPLETE, 1, one, encoded);
+	}
+
+	/* Refine domains to the values some solution takes
+	 * without enumerating: each value not met in a model
+	 * yet is assumed and dropped if that is unsatisfiable
+	 * Values proven out are cut even if the deadline
+	 * expires, the count is Result.unknown_count
+	 */
+	public Combinator.Result refine(Deadline deadline)
+	{
+		sync();
+		long[][] seen = new long [variable_count][engine.words()];
+		SatSolver.Outcome outcome = solver.solve(deadline);
+		if (outcome == SatSolver.Outcome.UNSATISFIABLE)
+			return new Combinator.Result(Combinator.Status.UNSATISFIABLE, 0, null, encoded);
+		if (outcome == SatSolver.Outcome.UNKNOWN)
+			return new Combinator.Result(expired(deadline), Combinator.Result.unknown_count,
+				null, encoded);
+		engine.mark(seen, solution());
+		boolean timeout = false;
+		int[] assumption = new int [1];
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i)
+			for (int off = 0 ; off != literal_var[var_i].length ; ++off) {
+				if (literal_var[var_i][off] < 0 || excluded[var_i][off] ||
+				    (seen[var_i][off >> 6] & (1l << off)) != 0)
+					continue;
+				if (!timeout) {
+					assumption[0] = SatSolver.literal(literal_var[var_i][off], true);
+					outcome = solver.solve(assumption, deadline);
+					if (outcome == SatSolver.Outcome.UNSATISFIABLE) {
+						exclude(var_i, off);
+						continue;
+					}
+					if (outcome == SatSolver.Outcome.SATISFIABLE) {
+						engine.mark(seen, solution());
+						continue;
+					}
+					timeout = true;
+				}
+				/* Not checked so it stays */
+				seen[var_i][off >> 6] |= 1l << off;
+			}
+		engine.cut(seen);
+		return new Combinator.Result(timeout ? expired(deadline) : Combinator.Status.COMPLETE,
+			Combinator.Result.unknown_count, null, encoded);
+	}
+
+	/* Values every solution gives to each zero based
+	 * variable, one less than the minimum value for
+	 * variables that can differ, null if there is no
+	 * solution or the deadline expires
+	 * Domains are left untouched
+	 */
+	public int[] backbone(Deadline deadline)
+	{
+		sync();
+		if (solver.solve(deadline) != SatSolver.Outcome.SATISFIABLE)
+			return null;
+		int[] backbone = solution();
+		int[] assumption = new int [1];
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i) {
+			if (backbone[var_i] < min_value)
+				continue;
+			int lit = SatSolver.literal(literal_var[var_i][backbone[var_i] - min_value], true);
+			assumption[0] = lit ^ 1;
+			SatSolver.Outcome outcome = solver.solve(assumption, deadline);
+			if (outcome == SatSolver.Outcome.UNKNOWN)
+				return null;
+			if (outcome == SatSolver.Outcome.UNSATISFIABLE) {
+				solver.addClause(lit);
+				continue;
+			}
+			/* Every variable this model moves is free */
+			int[] other = solution();
+			for (int var_j = var_i ; var_j != variable_count ; ++var_j)
+				if (other[var_j] != backbone[var_j])
+					backbone[var_j] = min_value - 1;
+		}
+		return backbone;
+	}
+}
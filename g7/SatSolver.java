@@ -0,0 +1,703 @@
+package mapthatset.g7;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Vector;
+
+/* Conflict driven clause learning SAT solver
+ * Two watched literals, VSIDS branching with phase
+ * saving, first UIP learning with clause minimization,
+ * Luby restarts and learnt clause reduction by LBD
+ * Incremental: clauses can be added between solves
+ * and every solve can take assumptions
+ * Variables are numbered from zero, literal 2v means
+ * variable v is true and 2v+1 that it is false
+ */
+public class SatSolver {
+
+	/* Outcome of a solve */
+	public static enum Outcome {
+
+		/* Model found, read it with model() */
+		SATISFIABLE,
+
+		/* No model, under the assumptions if any */
+		UNSATISFIABLE,
+
+		/* Deadline expired before an answer */
+		UNKNOWN
+	}
+
+	/* Literal values */
+	private static final int value_true = 1;
+	private static final int value_false = -1;
+	private static final int value_undefined = 0;
+
+	/* Conflicts of the first restart */
+	private static final int restart_base = 100;
+
+	/* Decay of variable activities */
+	private static final double activity_decay = 0.95;
+
+	/* Clause with the watched literals first
+	 * Reason clauses have the literal they imply first
+	 */
+	private static class Clause {
+
+		/* Literals */
+		int[] literals;
+
+		/* Learnt by conflict analysis */
+		boolean learnt;
+
+		/* Distinct decision levels when learnt */
+		int lbd;
+
+		/* Deleted, dropped lazily from watch lists */
+		boolean removed;
+
+		Clause(int[] literals, boolean learnt)
+		{
+			this.literals = literals;
+			this.learnt = learnt;
+			lbd = 0;
+			removed = false;
+		}
+	}
+
+	/* Growable list of clauses watching a literal */
+	private static class Watches {
+
+		Clause[] clauses = new Clause [4];
+
+		int size = 0;
+
+		void add(Clause clause)
+		{
+			if (size == clauses.length)
+				clauses = Arrays.copyOf(clauses, size * 2);
+			clauses[size++] = clause;
+		}
+	}
+
+	/* Number of variables */
+	private int variable_count;
+
+	/* Value per variable */
+	private int[] value;
+
+	/* Decision level per assigned variable */
+	private int[] level;
+
+	/* Clause that implied each variable, null for decisions */
+	private Clause[] reason;
+
+	/* Last value per variable used as next phase */
+	private boolean[] phase;
+
+	/* Activity per variable */
+	private double[] activity;
+
+	/* Amount added to activities on a bump */
+	private double activity_inc;
+
+	/* Max heap of variables by activity */
+	private int[] heap;
+
+	/* Position in the heap per variable, -1 if out */
+	private int[] heap_index;
+
+	/* Number of variables in the heap */
+	private int heap_size;
+
+	/* Clauses watching each literal */
+	private Watches[] watches;
+
+	/* Assigned literals in order */
+	private int[] trail;
+
+	/* Number of assigned literals */
+	private int trail_size;
+
+	/* Start of each decision level in the trail */
+	private int[] trail_limits;
+
+	/* Current decision level */
+	private int levels;
+
+	/* Trail position of the next literal to propagate */
+	private int propagated;
+
+	/* Problem clauses */
+	private Vector <Clause> clauses;
+
+	/* Learnt clauses */
+	private Vector <Clause> learnts;
+
+	/* Learnt clauses kept before a reduction */
+	private double max_learnts;
+
+	/* Marks used by conflict analysis */
+	private boolean[] seen;
+
+	/* Clauses contradict at level zero */
+	private boolean inconsistent;
+
+	/* Model of the last satisfiable solve */
+	private boolean[] model;
+
+	/* Conflicts so far */
+	private long conflicts;
+
+	/* Empty solver */
+	public SatSolver()
+	{
+		variable_count = 0;
+		value = new int [16];
+		level = new int [16];
+		reason = new Clause [16];
+		phase = new boolean [16];
+		activity = new double [16];
+		activity_inc = 1;
+		heap = new int [16];
+		heap_index = new int [16];
+		heap_size = 0;
+		watches = new Watches [32];
+		trail = new int [16];
+		trail_size = 0;
+		trail_limits = new int [16];
+		levels = 0;
+		propagated = 0;
+		clauses = new Vector <Clause> ();
+		learnts = new Vector <Clause> ();
+		max_learnts = 1000;
+		seen = new boolean [16];
+		inconsistent = false;
+		model = null;
+		conflicts = 0;
+	}
+
+	/* Number of variables */
+	public int variables()
+	{
+		return variable_count;
+	}
+
+	/* Number of conflicts so far */
+	public long conflicts()
+	{
+		return conflicts;
+	}
+
+	/* Literal of a variable with a sign */
+	public static int literal(int var, boolean positive)
+	{
+		return positive ? var * 2 : var * 2 + 1;
+	}
+
+	/* Add a new variable and return its number */
+	public int newVariable()
+	{
+		int var = variable_count++;
+		if (var == value.length) {
+			int capacity = var * 2;
+			value = Arrays.copyOf(value, capacity);
+			level = Arrays.copyOf(level, capacity);
+			reason = Arrays.copyOf(reason, capacity);
+			phase = Arrays.copyOf(phase, capacity);
+			activity = Arrays.copyOf(activity, capacity);
+			heap = Arrays.copyOf(heap, capacity);
+			heap_index = Arrays.copyOf(heap_index, capacity);
+			watches = Arrays.copyOf(watches, capacity * 2);
+			trail = Arrays.copyOf(trail, capacity);
+			trail_limits = Arrays.copyOf(trail_limits, capacity);
+			seen = Arrays.copyOf(seen, capacity);
+		}
+		value[var] = value_undefined;
+		watches[var * 2] = new Watches();
+		watches[var * 2 + 1] = new Watches();
+		heap_index[var] = -1;
+		heapInsert(var);
+		return var;
+	}
+
+	/* Add a clause, false if the clauses
+	 * are now unsatisfiable at the top level
+	 */
+	public boolean addClause(int ... literals)
+	{
+		cancelUntil(0);
+		if (inconsistent)
+			return false;
+		int[] lits = Arrays.copyOf(literals, literals.length);
+		Arrays.sort(lits);
+		int size = 0;
+		for (int i = 0 ; i != lits.length ; ++i) {
+			int lit = lits[i];
+			if ((lit >> 1) >= variable_count)
+				throw new IllegalArgumentException();
+			/* Satisfied or tautology */
+			if (valueOf(lit) == value_true || (size != 0 && lits[size - 1] == (lit ^ 1)))
+				return true;
+			if (valueOf(lit) == value_false || (size != 0 && lits[size - 1] == lit))
+				continue;
+			lits[size++] = lit;
+		}
+		if (size == 0) {
+			inconsistent = true;
+			return false;
+		}
+		if (size == 1) {
+			enqueue(lits[0], null);
+			if (propagate() != null)
+				inconsistent = true;
+			return !inconsistent;
+		}
+		Clause clause = new Clause(Arrays.copyOf(lits, size), false);
+		attach(clause);
+		clauses.add(clause);
+		return true;
+	}
+
+	/* Solve with no assumptions */
+	public Outcome solve(Deadline deadline)
+	{
+		return solve(new int [0], deadline);
+	}
+
+	/* Solve with assumed literals
+	 * Unsatisfiable may be due to the assumptions
+	 */
+	public Outcome solve(int[] assumptions, Deadline deadline)
+	{
+		model = null;
+		cancelUntil(0);
+		if (inconsistent)
+			return Outcome.UNSATISFIABLE;
+		if (propagate() != null) {
+			inconsistent = true;
+			return Outcome.UNSATISFIABLE;
+		}
+		for (int restart = 0 ;; ++restart) {
+			Outcome outcome = search(luby(restart) * restart_base, assumptions, deadline);
+			cancelUntil(0);
+			if (outcome != null)
+				return outcome;
+		}
+	}
+
+	/* Drop the clauses satisfied at the top level,
+	 * such as those hanging off a literal set false
+	 * for good, with their watches and reasons
+	 */
+	public void simplify()
+	{
+		cancelUntil(0);
+		if (inconsistent || propagate() != null) {
+			inconsistent = true;
+			return;
+		}
+		drop(clauses);
+		drop(learnts);
+		for (int lit = 0 ; lit != variable_count * 2 ; ++lit) {
+			Watches list = watches[lit];
+			int j = 0;
+			for (int i = 0 ; i != list.size ; ++i)
+				if (!list.clauses[i].removed)
+					list.clauses[j++] = list.clauses[i];
+			Arrays.fill(list.clauses, j, list.size, null);
+			list.size = j;
+		}
+		/* Top level literals need no reason */
+		for (int i = 0 ; i != trail_size ; ++i)
+			reason[trail[i] >> 1] = null;
+	}
+
+	/* Remove the satisfied clauses of a list */
+	private void drop(Vector <Clause> list)
+	{
+		int j = 0;
+		for (int i = 0 ; i != list.size() ; ++i) {
+			Clause clause = list.get(i);
+			boolean satisfied = false;
+			for (int k = 0 ; k != clause.literals.length && !satisfied ; ++k)
+				satisfied = valueOf(clause.literals[k]) == value_true;
+			if (satisfied)
+				clause.removed = true;
+			else
+				list.set(j++, clause);
+		}
+		list.setSize(j);
+	}
+
+	/* Value of a variable in the last model */
+	public boolean model(int var)
+	{
+		return model[var];
+	}
+
+	/* Search until a model, a refutation, the
+	 * deadline or some conflicts for a restart
+	 */
+	private Outcome search(long budget, int[] assumptions, Deadline deadline)
+	{
+		long restart_conflicts = 0;
+		int[] learnt_buffer = new int [16];
+		for (long ticks = 0 ;; ++ticks) {
+			if ((ticks & 255) == 0 && deadline.expired())
+				return Outcome.UNKNOWN;
+			Clause conflict = propagate();
+			if (conflict != null) {
+				conflicts++;
+				restart_conflicts++;
+				if (levels == 0) {
+					inconsistent = true;
+					return Outcome.UNSATISFIABLE;
+				}
+				learnt_buffer = analyze(conflict, learnt_buffer);
+				int size = learnt_buffer[0];
+				int[] learnt = Arrays.copyOfRange(learnt_buffer, 1, size + 1);
+				cancelUntil(size == 1 ? 0 : level[learnt[1] >> 1]);
+				if (size == 1)
+					enqueue(learnt[0], null);
+				else {
+					Clause clause = new Clause(learnt, true);
+					clause.lbd = lbd(learnt);
+					attach(clause);
+					learnts.add(clause);
+					enqueue(learnt[0], clause);
+				}
+				activity_inc /= activity_decay;
+				continue;
+			}
+			if (restart_conflicts >= budget)
+				return null;
+			if (learnts.size() >= max_learnts + trail_size)
+				reduce();
+			/* Assumptions are the first decisions */
+			int next = -1;
+			while (levels < assumptions.length) {
+				int lit = assumptions[levels];
+				if (valueOf(lit) == value_true)
+					newLevel();
+				else if (valueOf(lit) == value_false)
+					return Outcome.UNSATISFIABLE;
+				else {
+					next = lit;
+					break;
+				}
+			}
+			if (next == -1) {
+				next = pickBranch();
+				if (next == -1) {
+					model = new boolean [variable_count];
+					for (int var = 0 ; var != variable_count ; ++var)
+						model[var] = value[var] == value_true;
+					return Outcome.SATISFIABLE;
+				}
+			}
+			newLevel();
+			enqueue(next, null);
+		}
+	}
+
+	/* Luby sequence 1 1 2 1 1 2 4 ... */
+	private static long luby(int i)
+	{
+		long size = 1;
+		int seq = 0;
+		while (size < i + 1) {
+			seq++;
+			size = size * 2 + 1;
+		}
+		while (size - 1 != i) {
+			size = (size - 1) >> 1;
+			seq--;
+			i = (int) (i % size);
+		}
+		return 1l << seq;
+	}
+
+	/* Value of a literal */
+	private int valueOf(int lit)
+	{
+		int v = value[lit >> 1];
+		return (lit & 1) == 0 ? v : -v;
+	}
+
+	/* Assign a literal true */
+	private void enqueue(int lit, Clause from)
+	{
+		int var = lit >> 1;
+		value[var] = (lit & 1) == 0 ? value_true : value_false;
+		level[var] = levels;
+		reason[var] = from;
+		trail[trail_size++] = lit;
+	}
+
+	/* Open a new decision level */
+	private void newLevel()
+	{
+		trail_limits[levels++] = trail_size;
+	}
+
+	/* Undo assignments above a level */
+	private void cancelUntil(int target)
+	{
+		if (levels <= target)
+			return;
+		for (int i = trail_size ; i-- != trail_limits[target] ; ) {
+			int var = trail[i] >> 1;
+			phase[var] = value[var] == value_true;
+			value[var] = value_undefined;
+			reason[var] = null;
+			if (heap_index[var] < 0)
+				heapInsert(var);
+		}
+		trail_size = trail_limits[target];
+		propagated = trail_size;
+		levels = target;
+	}
+
+	/* Watch the first two literals of a clause */
+	private void attach(Clause clause)
+	{
+		watches[clause.literals[0]].add(clause);
+		watches[clause.literals[1]].add(clause);
+	}
+
+	/* Unit propagation, returns a conflict or null */
+	private Clause propagate()
+	{
+		while (propagated != trail_size) {
+			int false_lit = trail[propagated++] ^ 1;
+			Watches list = watches[false_lit];
+			Clause[] watching = list.clauses;
+			int i = 0;
+			int j = 0;
+			next_clause:
+			while (i != list.size) {
+				Clause clause = watching[i++];
+				if (clause.removed)
+					continue;
+				int[] lits = clause.literals;
+				if (lits[0] == false_lit) {
+					lits[0] = lits[1];
+					lits[1] = false_lit;
+				}
+				if (valueOf(lits[0]) == value_true) {
+					watching[j++] = clause;
+					continue;
+				}
+				/* Look for a new literal to watch */
+				for (int k = 2 ; k != lits.length ; ++k)
+					if (valueOf(lits[k]) != value_false) {
+						lits[1] = lits[k];
+						lits[k] = false_lit;
+						watches[lits[1]].add(clause);
+						continue next_clause;
+					}
+				watching[j++] = clause;
+				if (valueOf(lits[0]) == value_false) {
+					while (i != list.size)
+						watching[j++] = watching[i++];
+					list.size = j;
+					propagated = trail_size;
+					return clause;
+				}
+				enqueue(lits[0], clause);
+			}
+			list.size = j;
+		}
+		return null;
+	}
+
+	/* First UIP conflict analysis
+	 * Returns the learnt clause in a buffer with its
+	 * size first, the asserting literal next and the
+	 * literal of the highest other level after it
+	 */
+	private int[] analyze(Clause conflict, int[] buffer)
+	{
+		int size = 2;
+		int open = 0;
+		int lit = -1;
+		int index = trail_size - 1;
+		Clause clause = conflict;
+		do {
+			int[] lits = clause.literals;
+			for (int k = lit == -1 ? 0 : 1 ; k != lits.length ; ++k) {
+				int var = lits[k] >> 1;
+				if (seen[var] || level[var] == 0)
+					continue;
+				bump(var);
+				seen[var] = true;
+				if (level[var] >= levels)
+					open++;
+				else {
+					if (size == buffer.length)
+						buffer = Arrays.copyOf(buffer, size * 2);
+					buffer[size++] = lits[k];
+				}
+			}
+			while (!seen[trail[index--] >> 1]);
+			lit = trail[index + 1];
+			clause = reason[lit >> 1];
+			seen[lit >> 1] = false;
+			open--;
+		} while (open > 0);
+		buffer[1] = lit ^ 1;
+		/* Drop literals implied by the others */
+		int kept = 2;
+		for (int i = 2 ; i != size ; ++i) {
+			Clause from = reason[buffer[i] >> 1];
+			boolean redundant = from != null;
+			for (int k = 1 ; redundant && k != from.literals.length ; ++k) {
+				int var = from.literals[k] >> 1;
+				if (!seen[var] && level[var] != 0)
+					redundant = false;
+			}
+			/* Dropped literals move past the kept ones */
+			if (!redundant) {
+				int t = buffer[kept];
+				buffer[kept++] = buffer[i];
+				buffer[i] = t;
+			}
+		}
+		for (int i = 2 ; i != size ; ++i)
+			seen[buffer[i] >> 1] = false;
+		size = kept;
+		/* Highest level literal goes second */
+		int best = 2;
+		for (int i = 3 ; i < size ; ++i)
+			if (level[buffer[i] >> 1] > level[buffer[best] >> 1])
+				best = i;
+		if (size > 2) {
+			int t = buffer[2];
+			buffer[2] = buffer[best];
+			buffer[best] = t;
+		}
+		buffer[0] = size - 1;
+		return buffer;
+	}
+
+	/* Distinct decision levels of a clause */
+	private int lbd(int[] lits)
+	{
+		int[] levels_seen = new int [lits.length];
+		int count = 0;
+		next_lit:
+		for (int i = 0 ; i != lits.length ; ++i) {
+			int l = level[lits[i] >> 1];
+			for (int j = 0 ; j != count ; ++j)
+				if (levels_seen[j] == l)
+					continue next_lit;
+			levels_seen[count++] = l;
+		}
+		return count;
+	}
+
+	/* Remove half of the learnt clauses, those with the
+	 * most levels first, keeping reasons and glue clauses
+	 */
+	private void reduce()
+	{
+		Clause[] sorted = learnts.toArray(new Clause [learnts.size()]);
+		Arrays.sort(sorted, new Comparator <Clause> () {
+			public int compare(Clause a, Clause b)
+			{
+				if (a.lbd != b.lbd)
+					return b.lbd - a.lbd;
+				return b.literals.length - a.literals.length;
+			}
+		});
+		learnts.clear();
+		for (int i = 0 ; i != sorted.length ; ++i) {
+			Clause clause = sorted[i];
+			int var = clause.literals[0] >> 1;
+			boolean locked = reason[var] == clause && valueOf(clause.literals[0]) == value_true;
+			if (i < sorted.length / 2 && clause.lbd > 2 && !locked)
+				clause.removed = true;
+			else
+				learnts.add(clause);
+		}
+		max_learnts *= 1.1;
+	}
+
+	/* Next decision literal, -1 if all assigned */
+	private int pickBranch()
+	{
+		while (heap_size != 0) {
+			int var = heapRemoveMax();
+			if (value[var] == value_undefined)
+				return literal(var, phase[var]);
+		}
+		return -1;
+	}
+
+	/* Raise the activity of a variable */
+	private void bump(int var)
+	{
+		activity[var] += activity_inc;
+		if (activity[var] > 1e100) {
+			for (int v = 0 ; v != variable_count ; ++v)
+				activity[v] *= 1e-100;
+			activity_inc *= 1e-100;
+		}
+		if (heap_index[var] >= 0)
+			heapUp(heap_index[var]);
+	}
+
+	private void heapInsert(int var)
+	{
+		heap[heap_size] = var;
+		heap_index[var] = heap_size;
+		heapUp(heap_size++);
+	}
+
+	private int heapRemoveMax()
+	{
+		int top = heap[0];
+		heap_index[top] = -1;
+		if (--heap_size != 0) {
+			heap[0] = heap[heap_size];
+			heap_index[heap[0]] = 0;
+			heapDown(0);
+		}
+		return top;
+	}
+
+	private void heapUp(int i)
+	{
+		int var = heap[i];
+		while (i != 0) {
+			int parent = (i - 1) >> 1;
+			if (activity[heap[parent]] >= activity[var])
+				break;
+			heap[i] = heap[parent];
+			heap_index[heap[i]] = i;
+			i = parent;
+		}
+		heap[i] = var;
+		heap_index[var] = i;
+	}
+
+	private void heapDown(int i)
+	{
+		int var = heap[i];
+		for (;;) {
+			int child = i * 2 + 1;
+			if (child >= heap_size)
+				break;
+			if (child + 1 < heap_size && activity[heap[child + 1]] > activity[heap[child]])
+				child++;
+			if (activity[heap[child]] <= activity[var])
+				break;
+			heap[i] = heap[child];
+			heap_index[heap[i]] = i;
+			i = child;
+		}
+		heap[i] = var;
+		heap_index[var] = i;
+	}
+}
@@ -0,0 +1,109 @@
+package mapthatset.g7;
+
+/* Set of solutions stored by column
+ * One compact column per variable holding
+ * the offset of each value from the minimum
+ * so filters scan memory sequentially
+ * Knows the watermark of the constraints
+ * all its solutions satisfy
+ */
+public class SolutionColumns {
+
+	/* Minimum value */
+	final int min_value;
+
+	/* Value offsets per variable per solution */
+	char[][] columns;
+
+	/* Number of solutions */
+	int rows;
+
+	/* Number of first constraints all solutions satisfy */
+	int watermark;
+
+	/* Store solutions of some variables whose values
+	 * are between minimum and maximum value
+	 */
+	public SolutionColumns(int[][] solutions, int variables, int min, int max, int watermark)
+	{
+		if (max - min >= 1 << 16 || variables <= 0)
+			throw new IllegalArgumentException();
+		min_value = min;
+		rows = solutions.length;
+		this.watermark = watermark;
+		columns = new char [variables][rows];
+		for (int row = 0 ; row != rows ; ++row) {
+			int[] solution = solutions[row];
+			for (int var_i = 0 ; var_i != variables ; ++var_i) {
+				if (solution[var_i] < min || solution[var_i] > max)
+					throw new IllegalArgumentException();
+				columns[var_i][row] = (char) (solution[var_i] - min);
+			}
+		}
+	}
+
+	/* Solutions of some rows in the same order
+	 * known to satisfy some first constraints
+	 */
+	SolutionColumns select(int[] kept, int kept_count, int watermark)
+	{
+		char[][] selected = new char [columns.length][kept_count];
+		for (int var_i = 0 ; var_i != columns.length ; ++var_i) {
+			char[] column = columns[var_i];
+			char[] new_column = selected[var_i];
+			for (int i = 0 ; i != kept_count ; ++i)
+				new_column[i] = column[kept[i]];
+		}
+		return new SolutionColumns(min_value, selected, kept_count, watermark);
+	}
+
+	private SolutionColumns(int min, char[][] columns, int rows, int watermark)
+	{
+		min_value = min;
+		this.columns = columns;
+		this.rows = rows;
+		this.watermark = watermark;
+	}
+
+	/* Number of solutions */
+	public int size()
+	{
+		return rows;
+	}
+
+	/* Number of variables */
+	public int variables()
+	{
+		return columns.length;
+	}
+
+	/* Number of first constraints all solutions satisfy */
+	public int watermark()
+	{
+		return watermark;
+	}
+
+	/* Value of a zero based variable in a solution */
+	public int value(int row, int var_i)
+	{
+		return columns[var_i][row] + min_value;
+	}
+
+	/* One solution as an array */
+	public int[] solution(int row)
+	{
+		int[] solution = new int [columns.length];
+		for (int var_i = 0 ; var_i != columns.length ; ++var_i)
+			solution[var_i] = columns[var_i][row] + min_value;
+		return solution;
+	}
+
+	/* All solutions as arrays */
+	public int[][] solutions()
+	{
+		int[][] solutions = new int [rows][];
+		for (int row = 0 ; row != rows ; ++row)
+			solutions[row] = solution(row);
+		return solutions;
+	}
+}
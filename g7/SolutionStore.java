@@ -0,0 +1,253 @@
+package mapthatset.g7;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/* Set of solutions packed in bits outside the heap
+ * Each value takes just the bits its range needs
+ * and rows follow each other with no gaps
+ * Lives in direct buffers up to a memory limit and
+ * then spills to a memory mapped temporary file so
+ * it can grow past the heap and past 2^31 rows
+ * Rows are read and written through arrays of the
+ * caller so streaming over it allocates nothing
+ */
+public class SolutionStore {
+
+	/* System property with the bytes kept in memory */
+	public static final String memory_property = "mapthatset.store.memory";
+
+	/* Bytes kept in memory if the property is not set */
+	private static final long default_memory = 1l << 28;
+
+	/* Words per buffer as a power of two */
+	private static final int chunk_shift = 17;
+
+	/* Words per buffer */
+	private static final int chunk_words = 1 << chunk_shift;
+
+	/* Number of variables */
+	final int variable_count;
+
+	/* Minimum value */
+	final int min_value;
+
+	/* Bits per value */
+	private final int bits;
+
+	/* Mask of the bits of a value */
+	private final long value_mask;
+
+	/* Bytes kept in memory before spilling */
+	private final long memory_limit;
+
+	/* Buffers in memory first then mapped ones */
+	private ByteBuffer[] chunks;
+
+	/* Number of buffers */
+	private int chunk_count;
+
+	/* Buffers mapped from the spill file */
+	private int spilled;
+
+	/* Spill file, created when first needed */
+	private File spill_file;
+
+	/* Open spill file */
+	private RandomAccessFile spill;
+
+	/* Number of solutions */
+	long rows;
+
+	/* Number of first constraints all solutions satisfy */
+	int watermark;
+
+	/* Empty store for some variables whose values are
+	 * between minimum and maximum value using the memory
+	 * limit of the system property
+	 */
+	public SolutionStore(int variables, int min, int max)
+	{
+		this(variables, min, max, Long.getLong(memory_property, default_memory));
+	}
+
+	/* Empty store spilling to disk after some bytes */
+	public SolutionStore(int variables, int min, int max, long memory)
+	{
+		if (variables <= 0 || max < min || memory < 0)
+			throw new IllegalArgumentException();
+		variable_count = variables;
+		min_value = min;
+		int b = 32 - Integer.numberOfLeadingZeros(max - min);
+		bits = b == 0 ? 1 : b;
+		value_mask = (1l << bits) - 1;
+		memory_limit = memory;
+		chunks = new ByteBuffer [16];
+		chunk_count = 0;
+		spilled = 0;
+		spill_file = null;
+		spill = null;
+		rows = 0;
+		watermark = 0;
+	}
+
+	/* Number of solutions */
+	public long size()
+	{
+		return rows;
+	}
+
+	/* Number of variables */
+	public int variables()
+	{
+		return variable_count;
+	}
+
+	/* Number of first constraints all solutions satisfy */
+	public int watermark()
+	{
+		return watermark;
+	}
+
+	/* Bytes held in memory */
+	public long memory()
+	{
+		return (chunk_count - spilled) * (long) chunk_words * 8;
+	}
+
+	/* Bytes spilled to disk */
+	public long disk()
+	{
+		return spilled * (long) chunk_words * 8;
+	}
+
+	/* Append a solution */
+	public void add(int[] solution) throws IOException
+	{
+		reserve(rows + 1);
+		set(rows++, solution);
+	}
+
+	/* Read a solution into an array of the caller */
+	public void get(long row, int[] solution)
+	{
+		long pos = row * variable_count * bits;
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i, pos += bits)
+			solution[var_i] = (int) read(pos) + min_value;
+	}
+
+	/* Value of a zero based variable in a solution */
+	public int value(long row, int var_i)
+	{
+		return (int) read((row * variable_count + var_i) * bits) + min_value;
+	}
+
+	/* Overwrite a solution already in the store */
+	void set(long row, int[] solution)
+	{
+		long pos = row * variable_count * bits;
+		for (int var_i = 0 ; var_i != variable_count ; ++var_i, pos += bits)
+			write(pos, solution[var_i] - min_value);
+	}
+
+	/* Drop all solutions but keep the space */
+	public void clear()
+	{
+		rows = 0;
+		watermark = 0;
+	}
+
+	/* Number of solutions with each value
+	 * per zero based variable and value offset
+	 */
+	public long[][] marginals()
+	{
+		long[][] counts = new long [variable_count][(int) value_mask + 1];
+		for (long row = 0, pos = 0 ; row != rows ; ++row)
+			for (int var_i = 0 ; var_i != variable_count ; ++var_i, pos += bits)
+				counts[var_i][(int) read(pos)]++;
+		return counts;
+	}
+
+	/* Release the memory and delete the spill file */
+	public void close() throws IOException
+	{
+		Arrays.fill(chunks, null);
+		chunk_count = 0;
+		spilled = 0;
+		rows = 0;
+		if (spill != null) {
+			spill.close();
+			spill_file.delete();
+			spill = null;
+			spill_file = null;
+		}
+	}
+
+	/* Make room for some rows
+	 * Adds buffers in memory while under the
+	 * limit and mapped ones from the file after
+	 */
+	private void reserve(long row_count) throws IOException
+	{
+		long words = (row_count * variable_count * bits + 63) >>> 6;
+		while ((long) chunk_count << chunk_shift < words) {
+			ByteBuffer chunk;
+			long bytes = (long) chunk_words * 8;
+			if ((chunk_count + 1) * bytes <= memory_limit && spilled == 0)
+				chunk = ByteBuffer.allocateDirect((int) bytes);
+			else {
+				if (spill == null) {
+					spill_file = File.createTempFile("solutions", ".bin");
+					spill_file.deleteOnExit();
+					spill = new RandomAccessFile(spill_file, "rw");
+				}
+				chunk = spill.getChannel().map(FileChannel.MapMode.READ_WRITE, spilled * bytes, bytes);
+				spilled++;
+			}
+			if (chunk_count == chunks.length)
+				chunks = Arrays.copyOf(chunks, chunk_count * 2);
+			chunks[chunk_count++] = chunk.order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/* Value at a bit position, may span two words */
+	private long read(long pos)
+	{
+		long word = pos >>> 6;
+		int offset = (int) pos & 63;
+		long value = word(word) >>> offset;
+		if (offset + bits > 64)
+			value |= word(word + 1) << (64 - offset);
+		return value & value_mask;
+	}
+
+	/* Store a value at a bit position */
+	private void write(long pos, long value)
+	{
+		long word = pos >>> 6;
+		int offset = (int) pos & 63;
+		word(word, (word(word) & ~(value_mask << offset)) | (value << offset));
+		if (offset + bits > 64) {
+			int high = offset + bits - 64;
+			word(word + 1, (word(word + 1) & ~(value_mask >>> (bits - high))) | (value >>> (64 - offset)));
+		}
+	}
+
+	/* Word of the store by index */
+	private long word(long word)
+	{
+		return chunks[(int) (word >>> chunk_shift)].getLong(((int) word & (chunk_words - 1)) << 3);
+	}
+
+	/* Overwrite a word of the store */
+	private void word(long word, long value)
+	{
+		chunks[(int) (word >>> chunk_shift)].putLong(((int) word & (chunk_words - 1)) << 3, value);
+	}
+}
@@ -0,0 +1,293 @@
+package mapthatset.g7;
+
+import java.util.Arrays;
+
+/* Time budget of a guesser over a game and per turn
+ * A turn is the time from an answer to the next query
+ * and must stay within a latency limit, the game may
+ * also have a total budget that turns then share
+ * Phases plan for a part of the limit only, the rest
+ * is headroom for what nothing here can stop: pauses
+ * of the runtime, waiting for speculations to stop,
+ * the setup of the planner and the work between the
+ * phases, so the part is the target less the time
+ * turns ran past their plan at the 99th percentile
+ * of the last turns, measured whatever its cause,
+ * and at most the headroom
+ * Within a turn the phases (solving, dependencies,
+ * planning) run in order and each gets the time left
+ * less what the later phases are expected to take,
+ * learnt from the time they took in earlier turns,
+ * but never less than a part of the time left
+ * Work a phase cannot stop (building the columns of
+ * the solutions, the partitions of the dependencies)
+ * runs past its deadline, so the deadline comes as
+ * much earlier as the phase was seen to overrun
+ * A phase whose minimum does not fit is skipped so the
+ * guesser falls back to cheaper reasoning
+ * Set -Dmapthatset.turn.millis=<limit> for the turn
+ * and -Dmapthatset.game.millis=<budget> for the game,
+ * zero or unset for a game without budget
+ */
+public class TurnBudget {
+
+	/* System property with the turn limit */
+	public static final String turn_property = "mapthatset.turn.millis";
+
+	/* System property with the game budget */
+	public static final String game_property = "mapthatset.game.millis";
+
+	/* Turn limit if the property is not set, the
+	 * solver timeout the guesser always had
+	 */
+	private static final long default_turn = 100;
+
+	/* Phases of a turn in the order they run */
+	public static enum Phase {
+
+		/* Finding or filtering the solutions */
+		SOLVE (0.45, 1, true),
+
+		/* Functional dependencies over them */
+		DEPENDENCY (0.1, 1, false),
+
+		/* Lookahead for the next query */
+		PLAN (0.45, 5, true);
+
+		/* Part of the turn expected at first */
+		final double share;
+
+		/* Milliseconds below which it is skipped */
+		final long minimum;
+
+		/* Stops at its deadline with what it has,
+		 * the others need their expected time
+		 */
+		final boolean anytime;
+
+		Phase(double share, long minimum, boolean anytime)
+		{
+			this.share = share;
+			this.minimum = minimum;
+			this.anytime = anytime;
+		}
+	}
+
+	/* Part of the time left a phase always gets */
+	private static final double floor = 0.25;
+
+	/* Weight of the last turn in the expected times */
+	private static final double smoothing = 0.3;
+
+	/* Part of the turn the phases plan for at most,
+	 * the rest absorbs what nothing here can stop
+	 */
+	private static final double headroom = 0.7;
+
+	/* Part of the turn the latency should stay within */
+	private static final double target = 0.95;
+
+	/* Part of the turn the phases always plan for */
+	private static final double min_headroom = 0.3;
+
+	/* Last turns whose time past their plan is kept */
+	private static final int window = 64;
+
+	/* Turns the game budget is kept for at least */
+	private static final int reserve_turns = 8;
+
+	/* Turn limit in nanoseconds */
+	private final long turn_nanos;
+
+	/* Game budget in nanoseconds, zero if none */
+	private final long game_nanos;
+
+	/* Start of the game */
+	private long game_start;
+
+	/* A turn is open */
+	private boolean turn_open;
+
+	/* Start of the turn */
+	private long turn_start;
+
+	/* End of the turn */
+	private long turn_end;
+
+	/* Start of the phase running */
+	private long phase_start;
+
+	/* Deadline of the phase running */
+	private long phase_end;
+
+	/* Expected nanoseconds per phase */
+	private final double[] expected;
+
+	/* Longest nanoseconds lately per phase */
+	private final double[] longest;
+
+	/* Expected nanoseconds past the deadline per phase */
+	private final double[] overrun;
+
+	/* Latencies of the turns in nanoseconds */
+	private long[] latencies;
+
+	/* Number of turns */
+	private int turns;
+
+	/* Nanoseconds the last turns ran past their plan,
+	 * kept over games as they come of the runtime
+	 */
+	private final long[] past_plan;
+
+	/* Number of turns seen over all games */
+	private long seen;
+
+	/* Budget from the system properties */
+	public TurnBudget()
+	{
+		this(Long.getLong(game_property, 0), Long.getLong(turn_property, default_turn));
+	}
+
+	/* Budget of a game and limit of a turn in milliseconds */
+	public TurnBudget(long game_millis, long turn_millis)
+	{
+		if (game_millis < 0 || turn_millis <= 0)
+			throw new IllegalArgumentException();
+		game_nanos = game_millis * 1000000;
+		turn_nanos = turn_millis * 1000000;
+		expected = new double [Phase.values().length];
+		for (Phase phase : Phase.values())
+			expected[phase.ordinal()] = phase.share * turn_nanos;
+		longest = expected.clone();
+		overrun = new double [Phase.values().length];
+		latencies = new long [16];
+		past_plan = new long [window];
+		startGame();
+	}
+
+	/* Start the budget of a new game, what was
+	 * learnt of the phases is kept
+	 */
+	public void startGame()
+	{
+		game_start = System.nanoTime();
+		turn_open = false;
+		turns = 0;
+	}
+
+	/* Start a turn if none is open */
+	public void startTurn()
+	{
+		if (turn_open)
+			return;
+		turn_open = true;
+		turn_start = System.nanoTime();
+		long length = turn_nanos;
+		if (game_nanos != 0) {
+			long left = game_nanos - (turn_start - game_start);
+			length = Math.min(length, Math.max(left, 0) / reserve_turns);
+		}
+		double planned = headroom * length;
+		if (seen != 0) {
+			long tail = quantile(past_plan, (int) Math.min(seen, window), 0.99);
+			planned = Math.min(Math.max(target * length - tail, min_headroom * length), planned);
+		}
+		turn_end = turn_start + (long) planned;
+	}
+
+	/* Close the turn and record its latency and how
+	 * far it ran past its plan
+	 */
+	public void endTurn()
+	{
+		if (!turn_open)
+			return;
+		long now = System.nanoTime();
+		if (turns == latencies.length)
+			latencies = Arrays.copyOf(latencies, turns * 2);
+		latencies[turns++] = now - turn_start;
+		past_plan[(int) (seen++ % window)] = Math.max(now - turn_end, 0);
+		turn_open = false;
+	}
+
+	/* Check if the phase fits in the turn, a phase
+	 * that cannot stop must fit the longest it took
+	 * lately, the others their minimum
+	 * If not its times decay so it is tried again
+	 * in some later turn
+	 */
+	public boolean affords(Phase phase)
+	{
+		long allowance = allowance(phase);
+		int p = phase.ordinal();
+		if (allowance - overrun[p] >= phase.minimum * 1000000 &&
+		    (phase.anytime || allowance >= longest[p]))
+			return true;
+		expected[p] *= 1 - smoothing;
+		longest[p] *= 1 - smoothing;
+		overrun[p] *= 1 - smoothing;
+		return false;
+	}
+
+	/* Start a phase and get its deadline, early by
+	 * what the phase runs past it
+	 */
+	public Deadline start(Phase phase)
+	{
+		startTurn();
+		phase_start = System.nanoTime();
+		long nanos = Math.max(allowance(phase) - (long) overrun[phase.ordinal()], 0);
+		phase_end = phase_start + nanos;
+		return Deadline.afterNanos(nanos);
+	}
+
+	/* End the phase started last and learn its time,
+	 * the longest lately and how far it ran past its
+	 * deadline, also the worst lately
+	 */
+	public void done(Phase phase)
+	{
+		long now = System.nanoTime();
+		int p = phase.ordinal();
+		expected[p] = (1 - smoothing) * expected[p] + smoothing * (now - phase_start);
+		longest[p] = Math.max((1 - smoothing) * longest[p], now - phase_start);
+		overrun[p] = Math.max((1 - smoothing) * overrun[p], now - phase_end);
+	}
+
+	/* Nanoseconds a phase gets now */
+	private long allowance(Phase phase)
+	{
+		long left = Math.max(turn_end - System.nanoTime(), 0);
+		double later = 0;
+		for (Phase next : Phase.values())
+			if (next.ordinal() > phase.ordinal())
+				later += expected[next.ordinal()];
+		return (long) Math.max(left - later, floor * left);
+	}
+
+	/* Milliseconds a phase is expected to take */
+	public long expected(Phase phase)
+	{
+		return (long) (expected[phase.ordinal()] / 1000000);
+	}
+
+	/* Turn latency in milliseconds at some quantile
+	 * of the turns of the game so far
+	 */
+	public long percentile(double quantile)
+	{
+		if (turns == 0)
+			return 0;
+		return quantile(latencies, turns, quantile) / 1000000;
+	}
+
+	/* Value at some quantile of the first values */
+	private static long quantile(long[] values, int count, double quantile)
+	{
+		long[] sorted = Arrays.copyOf(values, count);
+		Arrays.sort(sorted);
+		int pos = (int) Math.ceil(quantile * count) - 1;
+		return sorted[Math.max(0, Math.min(pos, count - 1))];
+	}
+}
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 
 import mapthatset.g7.Combinator;
+import mapthatset.g7.PairMatrix;
 import mapthatset.sim.Guesser;
 import mapthatset.sim.GuesserAction;
 
@@ -13,7 +14,7 @@ public class CrossGuesser extends Guesser {
 
 	private int value_count;
 
-	private HashSet <Integer> combined;
+	private PairMatrix combined;
 
 	private HashSet <Integer> overlap;
 
@@ -35,13 +36,19 @@ public class CrossGuesser extends Guesser {
 	{
 		variable_count = len;
 		value_count = 0;
-		combined = new HashSet <Integer> ();
+		combined = new PairMatrix(variable_count);
 		overlap = new HashSet <Integer> ();
 		query = new ArrayList <Integer> ();
 		engine = new Combinator(variable_count);
 		active = new HashSet <Integer> ();
 		for (int var_i = 1 ; var_i <= variable_count ; ++var_i)
 			active.add(var_i);
+		engine.addListener(new Combinator.ListenerAdapter() {
+			public void fixed(int var, int value)
+			{
+				active.remove(var);
+			}
+		});
 		guess = false;
 		round_phase = 0;
 		round_dividing = new int[1];
@@ -75,23 +82,18 @@ public class CrossGuesser extends Guesser {
 			}
 			int limit = round_dividing[round_phase++];
 			/* Create a set of possible variables for query */
+			PairMatrix.Group group = combined.group();
 			do {
 				int var = 0;
-				next_var:
-				for (int var_i : active) {
-					if (round_used.contains(var_i))
-						continue;
-					for (int var_j : query) {
-						int mix = var_i * variable_count + var_j;
-						if (combined.contains(mix))
-							continue next_var;
+				for (int var_i : active)
+					if (!round_used.contains(var_i) && group.fits(var_i)) {
+						var = var_i;
+						break;
 					}
-					var = var_i;
-					break;
-				}
 				if (var == 0) break;
 				round_used.add(var);
 				query.add(var);
+				group.add(var);
 			} while (query.size() != limit);
 		} while (query.size() == 0);
 		guess = false;
@@ -112,16 +114,10 @@ public class CrossGuesser extends Guesser {
 		engine.constraint(toArray(query), answer);
 //		int[][] real_domain = findAllCombinations(50);
 		int[][] real_domain = null;
-		for (int var_i = 1 ; var_i <= variable_count ; ++var_i)
-			if (real_domain == null ? engine.domain(var_i).length == 1 : real_domain[var_i].length == 1)
-				active.remove(var_i);
+		/* Propagate so fixed variables leave active through the listener */
+		engine.propagate();
 		if (first_result) return;
-		for (int var_i : query)
-			for (int var_j : query) {
-				if (var_i >= var_j) continue;
-				combined.add(var_i * variable_count + var_j);
-				combined.add(var_j * variable_count + var_i);
-			}
+		combined.addAll(query);
 		overlap.clear();
 		for (int var_i : active)
 			for (int var_j : active) {
@@ -3,6 +3,7 @@ package mapthatset.g7.dev;
 import java.util.ArrayList;
 
 import mapthatset.g7.Combinator;
+import mapthatset.g7.Engine;
 import mapthatset.sim.Guesser;
 import mapthatset.sim.GuesserAction;
 
@@ -10,7 +11,7 @@ public class DistinctGuesser extends Guesser {
 
 	private int variable_count;
 
-	private Combinator engine;
+	private Engine engine;
 
 	private int round;
 
@@ -7,9 +7,16 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.Vector;
 
+import mapthatset.g7.Combinator;
+import mapthatset.g7.Deadline;
+import mapthatset.g7.DependencyFinder;
+import mapthatset.g7.Pair;
+import mapthatset.g7.PairMatrix;
+import mapthatset.g7.RunSeed;
+import mapthatset.g7.SolutionColumns;
 import mapthatset.sim.Guesser;
 import mapthatset.sim.GuesserAction;
 
@@ -26,7 +33,7 @@ public class MixGuesser extends Guesser {
 	private boolean guess;
 	private ArrayList <Integer> query;
 	private Combinator engine;
-	private Random random;
+	private final SplittableRandom random = RunSeed.generator(MixGuesser.class);
 	private Vector <Pair <ArrayList <Integer>, ArrayList <Integer>>> history;
 
 	public void startNewMapping(int len)
@@ -38,8 +45,16 @@ public class MixGuesser extends Guesser {
 		binary = false;
 		distinct = false;
 		cross = false;
-		random = new Random();
 		engine = new Combinator(len);
+		engine.seed(random.nextLong());
+		active = null;
+		engine.addListener(new Combinator.ListenerAdapter() {
+			public void fixed(int var, int value)
+			{
+				if (active != null)
+					active.remove(var);
+			}
+		});
 		history = new Vector <Pair <ArrayList <Integer>, ArrayList <Integer>>> ();
 	}
 
@@ -177,11 +192,14 @@ public class MixGuesser extends Guesser {
 	private HashMap <Integer, Pair <Integer, HashMap <Integer, Integer>>> dependency;
 
 	/* Variables already combined in query */
-	private HashSet <Integer> no_combine;
+	private PairMatrix no_combine;
 
 	/* All solutions */
 	private int[][] solutions;
 
+	/* Finds dependencies following the solutions */
+	private DependencyFinder finder;
+
 	private class UseCompare implements Comparator <Integer> {
 
 		public int compare(Integer var_i, Integer var_j)
@@ -198,10 +216,12 @@ public class MixGuesser extends Guesser {
 			active = new HashSet <Integer> ();
 			for (int i = 0 ; i != variable_count ; ++i) {
 				uses[i] = 0;
-				active.add(i + 1);
+				if (engine.domain(i + 1).length != 1)
+					active.add(i + 1);
 			}
-			no_combine = new HashSet <Integer> ();
+			no_combine = new PairMatrix(variable_count);
 			solutions = null;
+			finder = new DependencyFinder(1);
 			dependency = new HashMap <Integer, Pair <Integer, HashMap <Integer, Integer>>> ();
 		}
 		int limit = (int) Math.ceil(Math.sqrt(variable_count));
@@ -212,13 +232,13 @@ public class MixGuesser extends Guesser {
 		for (int var : active)
 			least_used[i++] = var;
 		Arrays.sort(least_used, 0, active.size(), new UseCompare());
-		next_var:
+		PairMatrix.Group group = no_combine.group();
 		for (i = 0 ; i != active.size(); ++i) {
 			int var_i = least_used[i];
-			for (int var_j : list)
-				if (no_combine.contains((var_i - 1) * variable_count + var_j - 1))
-					continue next_var;
+			if (!group.fits(var_i))
+				continue;
 			list.add(var_i);
+			group.add(var_i);
 			uses[var_i - 1]++;
 			if (list.size() == limit)
 				break;
@@ -228,12 +248,7 @@ public class MixGuesser extends Guesser {
 
 	private void crossResult(ArrayList <Integer> answer)
 	{
-		for (int var_i : query)
-			for (int var_j : query) {
-				if (var_i >= var_j) continue;
-				no_combine.add((var_i - 1) * variable_count + var_j - 1);
-				no_combine.add((var_j - 1) * variable_count + var_i - 1);
-			}
+		no_combine.addAll(query);
 		engine.timeoutLimit(100);
 		if (solutions == null)
 			solutions = engine.findall();
@@ -242,40 +257,26 @@ public class MixGuesser extends Guesser {
 		if (solutions != null)
 			functionalDependency();
 	//	dependencyResolve();
-		Iterator <Integer> it = active.iterator();
-		while (it.hasNext()) {
-			int var = it.next();
-			if (engine.domain(var).length == 1) {
-				active.remove(var);
-				it = active.iterator();
-			}
-		}
 	}
 
 	private void functionalDependency()
 	{
-		/* Eliminate variables that are uniquely identified by others */
-		for (int i = 1 ; i <= variable_count ; ++i) {
-			if (!active.contains(i) || engine.domain(i).length == 1)
+		/* Eliminate variables that are uniquely identified by others
+		 * All pairs come out of one pass over the partitions
+		 */
+		finder.update(new SolutionColumns(solutions, variable_count, 1, variable_count, 0),
+		              Deadline.never(), null);
+		for (DependencyFinder.Implication implication : finder.implications()) {
+			int i = implication.from[0];
+			int j = implication.to;
+			if (!active.contains(i) || engine.domain(i).length == 1 ||
+			    !active.contains(j) || engine.domain(j).length == 1)
 				continue;
-			next_pair:
-			/* Check x_i, x_j where j > i */
-			for (int j = 1 ; j <= variable_count ; ++j) {
-				if (i == j || !active.contains(j) || engine.domain(j).length == 1)
-					continue;
-				HashMap <Integer, Integer> value_mapping = new HashMap <Integer, Integer> ();
-				for (int[] solution : solutions) {
-					int vi = solution[i - 1];
-					int vj = solution[j - 1];
-					if (value_mapping.get(vi) != null && value_mapping.get(vi) != vj)
-						continue next_pair;
-					value_mapping.put(vi, vj);
-				//	no_combine.add((i - 1) * variable_count + j - 1);
-				//	no_combine.add((j - 1) * variable_count + i - 1);
-				}
-				dependency.put(i, new Pair <Integer, HashMap <Integer, Integer>> (j, value_mapping));
-				System.out.println("FD: " + i + " -> " + j);
-			}
+			HashMap <Integer, Integer> value_mapping = new HashMap <Integer, Integer> ();
+			for (int[] solution : solutions)
+				value_mapping.put(solution[i - 1], solution[j - 1]);
+			dependency.put(i, new Pair <Integer, HashMap <Integer, Integer>> (j, value_mapping));
+			System.out.println("FD: " + i + " -> " + j);
 		}
 	}
 
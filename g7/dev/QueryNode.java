@@ -2,15 +2,14 @@ package mapthatset.g7.dev;
 
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.Vector;
 
-import mapthatset.g7.Combinator;
+import mapthatset.g7.Engine;
+import mapthatset.g7.RunSeed;
 
 class QueryNode {
 
-	private static Random random = new Random();
-
 	private QueryNode up;
 	private QueryNode left;
 	private QueryNode right;
@@ -20,8 +19,12 @@ class QueryNode {
 
 	private int traversal_state;
 
-	private QueryNode(QueryNode father, Collection <Integer> vars)
+	/* Generator of this node, children split their own */
+	private SplittableRandom random;
+
+	private QueryNode(QueryNode father, Collection <Integer> vars, SplittableRandom gen)
 	{
+		random = gen;
 		up = father;
 		left = null;
 		right = null;
@@ -29,12 +32,12 @@ class QueryNode {
 		values = null;
 	}
 
-	public static QueryNode root(Collection <Integer> vars)
+	public static QueryNode root(Collection <Integer> vars, SplittableRandom gen)
 	{
-		return new QueryNode(null, vars);
+		return new QueryNode(null, vars, gen);
 	}
 
-	public void set(Collection <Integer> vals, Combinator engine) {
+	public void set(Collection <Integer> vals, Engine engine) {
 
 		/* Set values */
 		if (values != null)
@@ -69,8 +72,8 @@ class QueryNode {
 				left_vars.add(vars.get(i));
 			for (int i = half ; i != vars.size() ; ++i)
 				right_vars.add(vars.get(i));
-			left = new QueryNode(this, left_vars);
-			right = new QueryNode(this, right_vars);
+			left = new QueryNode(this, left_vars, random.split());
+			right = new QueryNode(this, right_vars, random.split());
 		}
 	}
 
@@ -157,7 +160,7 @@ class QueryNode {
 		Vector <Integer> v = new Vector <Integer> ();
 		for (int i = 1 ; i <= size ; ++i)
 			v.add(i);
-		QueryNode r = root(v);
+		QueryNode r = root(v, RunSeed.generator(QueryNode.class));
 		System.out.println("Root: [" + toString(r.variables) + "]");
 		Vector <QueryNode> open;
 		for (int i = 0 ; i != depth ; ++i) {
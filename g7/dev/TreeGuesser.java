@@ -2,11 +2,13 @@ package mapthatset.g7.dev;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.Vector;
 
 import mapthatset.g7.Combinator;
+import mapthatset.g7.Deadline;
 import mapthatset.g7.Pair;
+import mapthatset.g7.RunSeed;
 import mapthatset.sim.Guesser;
 import mapthatset.sim.GuesserAction;
 
@@ -23,7 +25,7 @@ public class TreeGuesser extends Guesser {
 	private boolean guess;
 	private ArrayList <Integer> query;
 	private Combinator engine;
-	private Random random;
+	private final SplittableRandom random = RunSeed.generator(TreeGuesser.class);
 	private Vector <Pair <ArrayList <Integer>, ArrayList <Integer>>> history;
 
 	public void startNewMapping(int len)
@@ -32,8 +34,11 @@ public class TreeGuesser extends Guesser {
 		value_count = 0;
 		round = 0;
 		guess = false;
-		random = new Random();
+		if (refining != null)
+			refining.cancel(true);
+		refining = null;
 		engine = new Combinator(len);
+		engine.seed(random.nextLong());
 		history = new Vector <Pair <ArrayList <Integer>, ArrayList <Integer>>> ();
 	}
 
@@ -83,11 +88,14 @@ public class TreeGuesser extends Guesser {
 
 	private Vector <QueryNode> query_nodes;
 
+	/* Refine running in the background, if any */
+	private Combinator.Solving refining;
+
 	private ArrayList <Integer> treeQuery()
 	{
 		/* Set the root of the tree */
 		if (round == 2) {
-			root = QueryNode.root(history.get(0).fst);
+			root = QueryNode.root(history.get(0).fst, random.split());
 			root.set(history.get(0).snd, engine);
 		}
 		/* Get all open query nodes */
@@ -162,8 +170,13 @@ public class TreeGuesser extends Guesser {
 					values.add(value);
 			q.set(values, engine);
 		}
-		engine.findAllTimeout(500);
-		engine.findAll();
+		/* Refine in the background, domains
+		 * are updated when next used, the last
+		 * one stops first
+		 */
+		if (refining != null)
+			refining.cancel(true);
+		refining = engine.refineAsync(Deadline.after(500));
 	}
 
 	private static boolean independent(Collection <?> c1, Collection <?> c2)
@@ -1,8 +1,9 @@
 package mapthatset.map;
 
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.SplittableRandom;
 
+import mapthatset.g7.RunSeed;
 import mapthatset.sim.GuesserAction;
 import mapthatset.sim.Mapper;
 
@@ -13,7 +14,7 @@ public class BinaryAndDistinctMapper extends Mapper {
 		return "G7: Half Binary and Half Distinct Mapper";
 	}
 
-	private Random gen = new Random();
+	private SplittableRandom gen = RunSeed.generator(BinaryAndDistinctMapper.class);
 	
 	private static void swap(int[] a, int i, int j)
 	{
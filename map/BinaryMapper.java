@@ -1,8 +1,9 @@
 package mapthatset.map;
 
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.SplittableRandom;
 
+import mapthatset.g7.RunSeed;
 import mapthatset.sim.GuesserAction;
 import mapthatset.sim.Mapper;
 
@@ -13,7 +14,7 @@ public class BinaryMapper extends Mapper {
 		return "G7: Binary Mapper";
 	}
 
-	private Random gen = new Random();
+	private SplittableRandom gen = RunSeed.generator(BinaryMapper.class);
 
 	public ArrayList <Integer> startNewMapping(int len)
 	{
@@ -1,8 +1,9 @@
 package mapthatset.map;
 
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.SplittableRandom;
 
+import mapthatset.g7.RunSeed;
 import mapthatset.sim.GuesserAction;
 import mapthatset.sim.Mapper;
 
@@ -14,7 +15,7 @@ public class MapToXMapper extends Mapper {
 		return "G7: MapTo" + x + "Guesser";
 	}
 
-	private Random gen = new Random();
+	private SplittableRandom gen = RunSeed.generator(MapToXMapper.class);
 
 	public ArrayList <Integer> startNewMapping(int len)
 	{
@@ -1,8 +1,9 @@
 package mapthatset.map;
 
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.SplittableRandom;
 
+import mapthatset.g7.RunSeed;
 import mapthatset.sim.GuesserAction;
 import mapthatset.sim.Mapper;
 
@@ -13,7 +14,7 @@ public class RandomBinaryAndRandomMapper extends Mapper {
 		return "G7: Random number of Binary and Random number of Random Mapper";
 	}
 
-	private Random gen = new Random();
+	private SplittableRandom gen = RunSeed.generator(RandomBinaryAndRandomMapper.class);
 
 	public ArrayList <Integer> startNewMapping(int len)
 	{